@@ -1,33 +1,45 @@
 package robertapengelly.support.tileview;
 
+import  android.annotation.TargetApi;
+import  android.content.ComponentCallbacks2;
 import  android.content.Context;
+import  android.content.res.Configuration;
 import  android.graphics.Paint;
 import  android.graphics.Path;
 import  android.graphics.Rect;
 import  android.graphics.RectF;
 import  android.graphics.Region;
+import  android.os.Build;
 import  android.os.Handler;
 import  android.os.Message;
 import  android.os.Parcel;
 import  android.os.Parcelable;
 import  android.util.AttributeSet;
 import  android.view.MotionEvent;
+import  android.view.ScaleGestureDetector;
 import  android.view.View;
 import  android.view.ViewGroup;
+import  android.widget.Scroller;
 
 import  java.lang.ref.WeakReference;
 import  java.util.List;
 
+import  robertapengelly.support.tileview.cache.TileDiskCache;
+import  robertapengelly.support.tileview.cache.TileMemoryBudget;
+import  robertapengelly.support.tileview.cache.TileMemoryCache;
 import  robertapengelly.support.tileview.detail.DetailLevel;
 import  robertapengelly.support.tileview.detail.DetailLevelManager;
 import  robertapengelly.support.tileview.geom.CoordinateTranslater;
 import  robertapengelly.support.tileview.geom.FloatMathHelper;
+import  robertapengelly.support.tileview.graphics.BitmapPool;
 import  robertapengelly.support.tileview.graphics.BitmapProvider;
 import  robertapengelly.support.tileview.hotspot.HotSpot;
 import  robertapengelly.support.tileview.hotspot.HotSpotManager;
 import  robertapengelly.support.tileview.marker.MarkerLayout;
 import  robertapengelly.support.tileview.path.CompositePathView;
 import  robertapengelly.support.tileview.tile.TileCanvasViewGroup;
+import  robertapengelly.support.tileview.tile.TileDecodeRegistry;
+import  robertapengelly.support.tileview.tile.TileRenderScheduler;
 import  robertapengelly.support.tileview.widget.ScalingLayout;
 import  robertapengelly.support.tileview.widget.ZoomPanLayout;
 
@@ -69,7 +81,18 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
     
     protected static final int DEFAULT_TILE_SIZE = 256;
     
+    /** The default time, in milliseconds, the scale has to hold still during a pinch before the level changes. */
+    public static final int DEFAULT_DETAIL_LEVEL_SWITCH_DELAY = 150;
+    
+    /** The default time, in milliseconds, without trim events before tile memory is no longer shed. */
+    public static final int DEFAULT_TRIM_RECOVERY_DELAY = 10000;
+    
+    // how far ahead, in milliseconds, a pinch is projected to find the detail level it is heading toward
+    private static final int PINCH_PREFETCH_LOOKAHEAD = 300;
+    
     private boolean mShouldRenderWhilePanning = false;
+    private int mDetailLevelSwitchDelay = DEFAULT_DETAIL_LEVEL_SWITCH_DELAY,
+                mTrimRecoveryDelay = DEFAULT_TRIM_RECOVERY_DELAY;
     
     private CoordinateTranslater mCoordinateTranslater = new CoordinateTranslater();
     private DetailLevelManager mDetailLevelManager = new DetailLevelManager();
@@ -77,9 +100,39 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
     
     private CompositePathView mCompositePathView;
     private MarkerLayout mCalloutLayout, mMarkerLayout;
+    private MemoryTrimListener mMemoryTrimListener;
+    private Rect mPrefetchViewport = new Rect();
     private RenderThrottleHandler mRenderThrottleHandler;
     private ScalingLayout mScalingLayout;
     private TileCanvasViewGroup mTileCanvasViewGroup;
+    private TrimMemoryCallbacks mTrimMemoryCallbacks;
+    
+    // switches to the level the pinch has settled on, once the scale has held still for the switch delay
+    private Runnable mApplyDetailLevelRunnable = new Runnable() {
+    
+        @Override
+        public void run() {
+            mDetailLevelManager.applyDeferredDetailLevel();
+        }
+    
+    };
+    
+    // stops shedding tile memory once no trim event has arrived for the recovery delay
+    private Runnable mRecoverFromTrimRunnable = new Runnable() {
+    
+        @Override
+        public void run() {
+        
+            // a TileView that can't be seen recovers once it is shown again
+            if ((getWindowVisibility() != VISIBLE) || willNotDraw())
+                return;
+            
+            recoverFromTrim();
+            requestRender();
+        
+        }
+    
+    };
     
     public TileView(Context context) {
         this(context, null);
@@ -400,6 +453,27 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
         return mTileCanvasViewGroup;
     }
     
+    // maps the level of a trim event to how much tile memory is shed
+    private static int getTrimStage(int level) {
+    
+        // the process is on the list of those to be killed, and the tiles can't be seen
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+            return TileCanvasViewGroup.TRIM_STAGE_ALL;
+        
+        // includes TRIM_MEMORY_UI_HIDDEN, the caches only save decodes while the TileView is being used
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+            return TileCanvasViewGroup.TRIM_STAGE_CACHES;
+        
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            return TileCanvasViewGroup.TRIM_STAGE_PADDING;
+        
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)
+            return TileCanvasViewGroup.TRIM_STAGE_PREFETCH;
+        
+        return TileCanvasViewGroup.TRIM_STAGE_NONE;
+    
+    }
+    
     /**
      * Moves an existing marker to another position.
      *
@@ -440,6 +514,20 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
     
     }
     
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        
+        // trim events are only delivered to components, so they are taken from the application
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+        
+            mTrimMemoryCallbacks = new TrimMemoryCallbacks(this);
+            getContext().getApplicationContext().registerComponentCallbacks(mTrimMemoryCallbacks);
+        
+        }
+    
+    }
+    
     @Override
     public void onDetailLevelChanged(DetailLevel detailLevel) {
     
@@ -448,6 +536,51 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
     
     }
     
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        
+        removeCallbacks(mRecoverFromTrimRunnable);
+        
+        if (mTrimMemoryCallbacks != null) {
+        
+            getContext().getApplicationContext().unregisterComponentCallbacks(mTrimMemoryCallbacks);
+            mTrimMemoryCallbacks = null;
+        
+        }
+    
+    }
+    
+    @Override
+    public boolean onDown(MotionEvent event) {
+    
+        // the fling is being interrupted, so its destination is no longer of interest
+        if (isFlinging())
+            mTileCanvasViewGroup.cancelPrefetch();
+        
+        return super.onDown(event);
+    
+    }
+    
+    @Override
+    public boolean onFling(MotionEvent event1, MotionEvent event2, float velocityX, float velocityY) {
+    
+        boolean handled = super.onFling(event1, event2, velocityX, velocityY);
+        
+        // rendering is throttled while flinging, so start on the tiles where the fling will stop right away
+        Scroller scroller = getScroller();
+        
+        int left = scroller.getFinalX();
+        int top = scroller.getFinalY();
+        
+        mPrefetchViewport.set(left, top, (left + getWidth()), (top + getHeight()));
+        mTileCanvasViewGroup.prefetch(mDetailLevelManager.getCurrentDetailLevel(), mPrefetchViewport, getScale(),
+            TileCanvasViewGroup.PREFETCH_PRIORITY_HIGH);
+        
+        return handled;
+    
+    }
+    
     @Override
     protected void onLayout(boolean changed, int l, int t, int r, int b) {
         super.onLayout(changed, l, t, r, b);
@@ -510,6 +643,31 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
     
     }
     
+    @Override
+    public boolean onScale(ScaleGestureDetector detector) {
+    
+        boolean handled = super.onScale(detector);
+        
+        // decode the tiles under the fingers first while pinching
+        int x = ((getScrollX() + (int) detector.getFocusX()) - getOffsetX());
+        int y = ((getScrollY() + (int) detector.getFocusY()) - getOffsetY());
+        
+        mTileCanvasViewGroup.setRenderFocalPoint(x, y);
+        prefetchPinchDestination(detector);
+        
+        return handled;
+    
+    }
+    
+    @Override
+    public boolean onScaleBegin(ScaleGestureDetector detector) {
+    
+        // the level follows the pinch once the scale holds still, rather than on every frame
+        mDetailLevelManager.deferDetailLevelChanges();
+        return super.onScaleBegin(detector);
+    
+    }
+    
     @Override
     public void onScaleChanged(float scale, float previous) {
         super.onScaleChanged(scale, previous);
@@ -517,6 +675,14 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
         mCalloutLayout.setScale(scale);
         mCompositePathView.setScale(scale);
         mDetailLevelManager.setScale(scale);
+        
+        if (isScaling()) {
+        
+            removeCallbacks(mApplyDetailLevelRunnable);
+            postDelayed(mApplyDetailLevelRunnable, mDetailLevelSwitchDelay);
+        
+        }
+        
         mHotSpotManager.setScale(scale);
         mMarkerLayout.setScale(scale);
         mScalingLayout.setScale(scale);
@@ -524,6 +690,19 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
     
     }
     
+    @Override
+    public void onScaleEnd(ScaleGestureDetector detector) {
+    
+        mTileCanvasViewGroup.cancelPrefetch();
+        mTileCanvasViewGroup.clearRenderFocalPoint();
+        
+        removeCallbacks(mApplyDetailLevelRunnable);
+        mDetailLevelManager.resumeDetailLevelChanges();
+        
+        super.onScaleEnd(detector);
+    
+    }
+    
     @Override
     protected void onScrollChanged(int l, int t, int oldl, int oldt) {
         super.onScrollChanged(l, t, oldl, oldt);
@@ -558,6 +737,57 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
     
     }
     
+    /**
+     * Sheds tile memory in stages as the system runs short of it: first prefetch work and the tiles of the
+     * previous DetailLevel, then the tiles in the viewport padding, then the caches, and the tiles in the
+     * viewport once the TileView can't be seen.  Nothing is restored until no trim event has arrived for the
+     * recovery delay, or the TileView is shown again, and then only as tiles are next rendered.
+     *
+     * From Ice Cream Sandwich the TileView receives trim events while it is attached to a window, so there
+     * is seldom a need to call this directly.
+     *
+     * @param level The level passed to ComponentCallbacks2.onTrimMemory.
+     */
+    public void onTrimMemory(int level) {
+    
+        int stage = getTrimStage(level);
+        
+        if (stage == TileCanvasViewGroup.TRIM_STAGE_NONE)
+            return;
+        
+        // a lower level means the pressure is easing, so the padding may be back unless the budget holds it off
+        if (stage >= TileCanvasViewGroup.TRIM_STAGE_PADDING)
+            mDetailLevelManager.suspendViewportPadding(DetailLevelManager.PADDING_SUSPENDED_BY_TRIM);
+        else
+            mDetailLevelManager.resumeViewportPadding(DetailLevelManager.PADDING_SUSPENDED_BY_TRIM);
+        
+        int byteCount = mTileCanvasViewGroup.trimMemory(stage);
+        
+        // the system doesn't say when the pressure is over, only when it gets worse
+        removeCallbacks(mRecoverFromTrimRunnable);
+        postDelayed(mRecoverFromTrimRunnable, mTrimRecoveryDelay);
+        
+        if (mMemoryTrimListener != null)
+            mMemoryTrimListener.onMemoryTrimmed(level, stage, byteCount);
+    
+    }
+    
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        
+        // being shown again means the process is in the foreground, and no longer first in line to be killed
+        if ((visibility != VISIBLE) || willNotDraw())
+            return;
+        
+        if (mTileCanvasViewGroup.getTrimStage() == TileCanvasViewGroup.TRIM_STAGE_NONE)
+            return;
+        
+        recoverFromTrim();
+        requestRender();
+    
+    }
+    
     @Override
     public void onZoomBegin(float scale, String origin) {
     
@@ -589,12 +819,23 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
     public void pause() {
     
         mRenderThrottleHandler.clear();
+        removeCallbacks(mApplyDetailLevelRunnable);
         mDetailLevelManager.invalidateAll();
         
         setWillNotDraw(true);
     
     }
     
+    // stops shedding tile memory, what was released comes back as it is next rendered
+    private void recoverFromTrim() {
+    
+        removeCallbacks(mRecoverFromTrimRunnable);
+        
+        mTileCanvasViewGroup.resetTrimStage();
+        mDetailLevelManager.resumeViewportPadding(DetailLevelManager.PADDING_SUSPENDED_BY_TRIM);
+    
+    }
+    
     /**
      * Removes a callout View from the TileView.
      *
@@ -639,6 +880,8 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
     public void resume() {
     
         setWillNotDraw(false);
+        
+        recoverFromTrim();
         updateViewport();
         
         mTileCanvasViewGroup.updateTileSet(mDetailLevelManager.getCurrentDetailLevel());
@@ -653,6 +896,42 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
         mTileCanvasViewGroup.resumeRender();
     }
     
+    /**
+     * Projects the pinch forward using the current scale velocity and, if it is heading toward a different
+     * DetailLevel, starts decoding that level's tiles behind the visible ones so they are ready when the
+     * level changes.
+     */
+    private void prefetchPinchDestination(ScaleGestureDetector detector) {
+    
+        if (mDetailLevelManager.getIsLocked())
+            return;
+        
+        float scale = getScale();
+        float destinationScale = (scale + (getScaleVelocity() * PINCH_PREFETCH_LOOKAHEAD));
+        
+        DetailLevel level = ((destinationScale > 0) ? mDetailLevelManager.getDetailLevelForScale(destinationScale) : null);
+        
+        if ((level == null) || level.equals(mDetailLevelManager.getCurrentDetailLevel())) {
+        
+            mTileCanvasViewGroup.cancelPrefetch();
+            return;
+        
+        }
+        
+        // the content under the fingers stays put while scaling, so project the viewport around the focal point
+        float deltaScale = (destinationScale / scale);
+        float focusX = (detector.getFocusX() - getOffsetX());
+        float focusY = (detector.getFocusY() - getOffsetY());
+        
+        int left = (int) (((getScrollX() + focusX) * deltaScale) - focusX);
+        int top = (int) (((getScrollY() + focusY) * deltaScale) - focusY);
+        
+        mPrefetchViewport.set(left, top, (left + getWidth()), (top + getHeight()));
+        mTileCanvasViewGroup.prefetch(level, mPrefetchViewport, destinationScale,
+            TileCanvasViewGroup.PREFETCH_PRIORITY_LOW);
+    
+    }
+    
     /**
      * Request that the current tile set is re-examined and re-drawn.
      * The request is added to a queue and is not guaranteed to be processed at any particular
@@ -711,6 +990,17 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
             mCoordinateTranslater.translateAndScaleY(y, getScale()));
     }
     
+    /**
+     * Sets the pool that tile bitmaps are returned to once they are no longer needed, so later decodes can
+     * reuse their memory.  Providers implementing PooledBitmapProvider receive the same pool.  The pool may
+     * be shared between TileView instances; pass null to disable pooling.
+     *
+     * @param bitmapPool The BitmapPool instance to use.
+     */
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        mTileCanvasViewGroup.setBitmapPool(bitmapPool);
+    }
+    
     /**
      * Sets a custom class to perform the getBitmap operation when tile bitmaps are requested for
      * tile images only.
@@ -738,6 +1028,8 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
      *   }
      * }}
      * </pre>
+     * The manager's hysteresis still applies to the level returned, see
+     * {@link DetailLevelManager#setHysteresis(float)}; set it to 0 to switch to the level straight away.
      * Then you should use {@code TileView.setDetailLevelManager} before other method calls, especially
      * {@code TileView.setSize} and {@code TileView.addDetailLevel}.
      * </p>
@@ -751,6 +1043,17 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
     
     }
     
+    /**
+     * Sets how long, in milliseconds, the scale has to hold still during a pinch before the DetailLevel
+     * follows it.  Until then the current level is scaled, so a pinch passing through a level doesn't start
+     * decoding it.  Defaults to DEFAULT_DETAIL_LEVEL_SWITCH_DELAY.
+     *
+     * @param delay The time, in milliseconds, the scale has to hold still.
+     */
+    public void setDetailLevelSwitchDelay(int delay) {
+        mDetailLevelSwitchDelay = Math.max(0, delay);
+    }
+    
     /**
      * Register a HotSpotTapListener with the TileView.  This listener will fire if any registered
      * HotSpot's region intersects a Tap event.
@@ -789,6 +1092,15 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
         mMarkerLayout.setMarkerTapListener(markerTapListener);
     }
     
+    /**
+     * Sets a listener told each time tile memory is shed in response to a trim event.
+     *
+     * @param memoryTrimListener The MemoryTrimListener instance, or null to stop listening.
+     */
+    public void setMemoryTrimListener(MemoryTrimListener memoryTrimListener) {
+        mMemoryTrimListener = memoryTrimListener;
+    }
+    
     /**
      * Allows the TileView to render tiles while panning.
      *
@@ -820,6 +1132,63 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
     
     }
     
+    /**
+     * Sets the registry used to share decodes that are in progress, so that a tile requested again while it
+     * is still being decoded is not produced twice.  Each TileView has its own registry by default; share one
+     * between TileViews that show the same source with the same BitmapProvider to share decodes between them.
+     *
+     * @param tileDecodeRegistry The TileDecodeRegistry instance to use, or null to disable sharing.
+     */
+    public void setTileDecodeRegistry(TileDecodeRegistry tileDecodeRegistry) {
+        mTileCanvasViewGroup.setTileDecodeRegistry(tileDecodeRegistry);
+    }
+    
+    /**
+     * Sets a cache of encoded tiles on disk, for BitmapProviders that are expensive to run.  Tiles are read
+     * from the cache before the provider is asked, and whatever the provider produces is written to it, so
+     * the work survives restarts.  Disk caching is disabled by default.
+     *
+     * @param tileDiskCache The TileDiskCache instance to use, or null to disable disk caching.
+     */
+    public void setTileDiskCache(TileDiskCache tileDiskCache) {
+        mTileCanvasViewGroup.setTileDiskCache(tileDiskCache);
+    }
+    
+    /**
+     * Sets the budget that caps the bytes held by tile bitmaps, whether drawn, cached or pooled.  Each
+     * TileView has a budget of a quarter of the memory class of the device by default.  Once it is exceeded,
+     * memory is given back from the cache and pool first, then prefetched and previous level tiles, then the
+     * viewport padding; the tiles in the viewport are kept regardless.  A budget may be shared between
+     * TileViews along with their cache and pool; pass null to leave tile memory unbudgeted.
+     *
+     * @param tileMemoryBudget The TileMemoryBudget instance to use.
+     */
+    public void setTileMemoryBudget(TileMemoryBudget tileMemoryBudget) {
+        mTileCanvasViewGroup.setTileMemoryBudget(tileMemoryBudget);
+    }
+    
+    /**
+     * Sets the cache used to keep decoded tile bitmaps that have left the viewport, so panning back over
+     * an area does not decode the same tiles again.  The cache may be shared between TileView instances;
+     * pass null to disable caching.
+     *
+     * @param tileMemoryCache The TileMemoryCache instance to use.
+     */
+    public void setTileMemoryCache(TileMemoryCache tileMemoryCache) {
+        mTileCanvasViewGroup.setTileMemoryCache(tileMemoryCache);
+    }
+    
+    /**
+     * Sets the scheduler that runs tile decodes.  Each TileView has a scheduler of its own by default; share
+     * one between the TileViews on a screen so they take turns decoding tiles instead of each running a
+     * thread pool.  The scheduler is not shut down by destroy when it was supplied here.
+     *
+     * @param tileRenderScheduler The TileRenderScheduler instance to use.
+     */
+    public void setTileRenderScheduler(TileRenderScheduler tileRenderScheduler) {
+        mTileCanvasViewGroup.setTileRenderScheduler(tileRenderScheduler);
+    }
+    
     /**
      * Defines whether tile bitmaps should be rendered using an AlphaAnimation
      *
@@ -829,6 +1198,17 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
         mTileCanvasViewGroup.setTransitionsEnabled(enabled);
     }
     
+    /**
+     * Sets how long, in milliseconds, tile memory keeps being shed after the last trim event; the system
+     * doesn't report the end of memory pressure, so it is assumed to be over once it has been quiet for this
+     * long.  Defaults to DEFAULT_TRIM_RECOVERY_DELAY.
+     *
+     * @param delay The delay in milliseconds.
+     */
+    public void setTrimRecoveryDelay(int delay) {
+        mTrimRecoveryDelay = Math.max(0, delay);
+    }
+    
     /**
      * Pads the viewport by the number of pixels passed.  e.g., setViewportPadding(100) instructs the
      * TileView to interpret it's actual viewport offset by 100 pixels in each direction (top, left,
@@ -902,6 +1282,7 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
         int right = (left + getWidth());
         
         mDetailLevelManager.updateViewport(left, top, right, bottom);
+        mTileCanvasViewGroup.updateRenderFocalPoint();
     
     }
     
@@ -995,4 +1376,46 @@ public class TileView extends ZoomPanLayout implements DetailLevelManager.Detail
     
     }
 
+    
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static class TrimMemoryCallbacks implements ComponentCallbacks2 {
+    
+        private final WeakReference<TileView> mTileViewWeakReference;
+        
+        TrimMemoryCallbacks(TileView view) {
+            mTileViewWeakReference = new WeakReference<>(view);
+        }
+        
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {}
+        
+        @Override
+        public void onLowMemory() {
+            onTrimMemory(TRIM_MEMORY_COMPLETE);
+        }
+        
+        @Override
+        public void onTrimMemory(int level) {
+        
+            TileView view = mTileViewWeakReference.get();
+            
+            if (view != null)
+                view.onTrimMemory(level);
+        
+        }
+    
+    }
+    
+    /** Interface definition for a callback to be invoked when tile memory is shed. */
+    public interface MemoryTrimListener {
+    
+        /**
+         * @param level     The level of the trim event, as passed to ComponentCallbacks2.onTrimMemory.
+         * @param stage     The TileCanvasViewGroup.TRIM_STAGE the tiles were trimmed to.
+         * @param byteCount The number of bytes released, approximate if the caches are shared.
+         */
+        void onMemoryTrimmed(int level, int stage, int byteCount);
+    
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,825 @@
+package robertapengelly.support.tileview.cache;
+
+import  android.graphics.Bitmap;
+import  android.graphics.BitmapFactory;
+import  android.os.Process;
+
+import  java.io.BufferedOutputStream;
+import  java.io.BufferedReader;
+import  java.io.BufferedWriter;
+import  java.io.File;
+import  java.io.FileInputStream;
+import  java.io.FileOutputStream;
+import  java.io.IOException;
+import  java.io.InputStreamReader;
+import  java.io.OutputStream;
+import  java.io.OutputStreamWriter;
+import  java.io.Writer;
+import  java.security.MessageDigest;
+import  java.security.NoSuchAlgorithmException;
+import  java.util.Arrays;
+import  java.util.Comparator;
+import  java.util.Iterator;
+import  java.util.LinkedHashMap;
+import  java.util.Map;
+import  java.util.concurrent.LinkedBlockingQueue;
+import  java.util.concurrent.RejectedExecutionException;
+import  java.util.concurrent.ThreadFactory;
+import  java.util.concurrent.ThreadPoolExecutor;
+import  java.util.concurrent.TimeUnit;
+
+import  robertapengelly.support.tileview.graphics.BitmapPool;
+import  robertapengelly.support.tileview.graphics.CancellationToken;
+import  robertapengelly.support.tileview.tile.Tile;
+
+/**
+ * A byte-bounded, least-recently-used cache of encoded tiles on disk, for BitmapProviders that are expensive
+ * to run.  Entries are keyed by the data and scale of the tile's DetailLevel plus its column and row, so
+ * the cache survives restarts as long as detail levels are added with the same data.
+ *
+ * Each tile is written to a temporary file and renamed into place, so a crash never leaves a partial tile
+ * behind.  A journal records writes, removals and reads so that the LRU order survives restarts; if the
+ * journal is missing or cannot be parsed it is rebuilt from the files found in the directory.  The directory
+ * is opened lazily by the first read or write, which happens on a render thread rather than the UI thread.
+ *
+ * Tiles offered by the render threads are encoded on a writer thread of the cache's own, so a tile is drawn
+ * without waiting for it to be written.
+ */
+public class TileDiskCache {
+
+    private static final int DEFAULT_QUALITY = 100;
+    private static final int REDUNDANT_OPERATION_LIMIT = 2000;
+    
+    // copies of tiles waiting for the writer thread, tiles offered beyond this are written when next decoded
+    private static final int MAX_PENDING_WRITES = 16;
+    private static final long WRITER_KEEP_ALIVE_SECONDS = 1;
+    private static final String WRITER_THREAD_NAME = "TileDiskCacheWriter";
+    
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TEMP = "journal.tmp";
+    private static final String JOURNAL_MAGIC = "robertapengelly.support.tileview.TileDiskCache";
+    private static final String JOURNAL_VERSION = "1";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    
+    private boolean mOpened;
+    private int mHitCount, mMissCount, mPendingWriteCount, mQuality = DEFAULT_QUALITY, mReadCount,
+                mRedundantOperationCount;
+    private long mMaxSize, mReadTime, mSize;
+    
+    private Bitmap.CompressFormat mCompressFormat = Bitmap.CompressFormat.PNG;
+    private File mDirectory;
+    private ThreadPoolExecutor mWriteExecutor;
+    private Writer mJournalWriter;
+    
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(0, 0.75f, true);
+    
+    /**
+     * @param directory The directory the cache owns; any other files placed in it will be treated as entries.
+     * @param maxSize   The maximum number of bytes the cache may hold.
+     */
+    public TileDiskCache(File directory, long maxSize) {
+    
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    
+    }
+    
+    // must be called with the lock held
+    private void appendJournal(String operation, String key, long size) {
+    
+        if (mJournalWriter == null)
+            return;
+        
+        try {
+        
+            if (operation.equals(CLEAN)) {
+            
+                mJournalWriter.write(CLEAN + ' ' + key + ' ' + size + '\n');
+                mJournalWriter.flush();
+            
+            } else {
+            
+                mJournalWriter.write(operation + ' ' + key + '\n');
+                ++mRedundantOperationCount;
+                
+                // reads only affect ordering, losing a few of them in a crash is harmless
+                if (operation.equals(REMOVE))
+                    mJournalWriter.flush();
+            
+            }
+            
+            if ((mRedundantOperationCount >= REDUNDANT_OPERATION_LIMIT)
+                && (mRedundantOperationCount >= mEntries.size()))
+                rebuildJournal();
+        
+        } catch (IOException ex) {
+            closeJournal();
+        }
+    
+    }
+    
+    /** Deletes every entry, along with the journal. */
+    public synchronized void clear() {
+    
+        closeJournal();
+        
+        File[] files = mDirectory.listFiles();
+        
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        
+        mEntries.clear();
+        mSize = 0;
+    
+    }
+    
+    /** Writes out any pending journal entries and releases the journal; the cache reopens when next used. */
+    public synchronized void close() {
+        closeJournal();
+    }
+    
+    // must be called with the lock held
+    private void closeJournal() {
+    
+        if (mJournalWriter != null) {
+        
+            try {
+                mJournalWriter.close();
+            } catch (IOException ex) {
+                // nothing more can be done, the journal is rebuilt from the directory if it is unreadable
+            }
+        
+        }
+        
+        mJournalWriter = null;
+        mOpened = false;
+    
+    }
+    
+    private Bitmap decode(File file, Tile tile, BitmapPool bitmapPool, int sampleSize,
+        CancellationToken cancellationToken) {
+    
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = tile.getDetailLevel().getBitmapConfig();
+        options.inSampleSize = sampleSize;
+        
+        if (bitmapPool != null)
+            bitmapPool.prepareOptions(options, (int) Math.ceil((float) tile.getWidth() / sampleSize),
+                (int) Math.ceil((float) tile.getHeight() / sampleSize));
+        
+        if (cancellationToken != null)
+            cancellationToken.cancelDecodeOnCancel(options);
+        
+        try {
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (IllegalArgumentException ex) {
+        
+            Bitmap unused = options.inBitmap;
+            
+            if (unused == null)
+                return null;
+            
+            // the pooled bitmap didn't fit the encoded tile, so give it back and decode into a fresh bitmap
+            options.inBitmap = null;
+            
+            if (!bitmapPool.put(unused))
+                unused.recycle();
+            
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        
+        }
+    
+    }
+    
+    // must be called with the lock held
+    private boolean ensureOpen() {
+    
+        if (mOpened)
+            return true;
+        
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+            return false;
+        
+        try {
+        
+            try {
+            
+                readJournal();
+                mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(mDirectory, JOURNAL_FILE), true), "US-ASCII"));
+            
+            } catch (IOException ex) {
+            
+                // the journal is missing, truncated or corrupt, so recover what we can from the directory
+                readDirectory();
+                rebuildJournal();
+            
+            }
+        
+        } catch (IOException ex) {
+        
+            closeJournal();
+            return false;
+        
+        }
+        
+        mOpened = true;
+        trimToSize(mMaxSize);
+        
+        return true;
+    
+    }
+    
+    /** Writes out any pending journal entries. */
+    public synchronized void flush() {
+    
+        if (mJournalWriter == null)
+            return;
+        
+        try {
+            mJournalWriter.flush();
+        } catch (IOException ex) {
+            closeJournal();
+        }
+    
+    }
+    
+    /**
+     * Decodes the tile from disk, if it was cached.
+     *
+     * @param tile       The tile to look up.
+     * @param bitmapPool The pool to borrow a bitmap from when decoding, or null.
+     *
+     * @return The decoded bitmap, or null if the tile was not cached or could not be read.
+     */
+    public Bitmap get(Tile tile, BitmapPool bitmapPool) {
+        return get(tile, bitmapPool, null);
+    }
+    
+    /**
+     * Decodes the tile from disk, if it was cached, giving up if the token is cancelled.
+     *
+     * @param tile              The tile to look up.
+     * @param bitmapPool        The pool to borrow a bitmap from when decoding, or null.
+     * @param cancellationToken The token that aborts the decode, or null.
+     *
+     * @return The decoded bitmap, or null if the tile was not cached, could not be read or was cancelled.
+     */
+    public Bitmap get(Tile tile, BitmapPool bitmapPool, CancellationToken cancellationToken) {
+        return get(tile, bitmapPool, 1, cancellationToken);
+    }
+    
+    /**
+     * Decodes the tile from disk at a fraction of its full size, if it was cached, giving up if the token is
+     * cancelled.
+     *
+     * @param tile              The tile to look up.
+     * @param bitmapPool        The pool to borrow a bitmap from when decoding, or null.
+     * @param sampleSize        The factor to decode the tile smaller than its full size by, as with
+     *                          BitmapFactory.Options.inSampleSize.
+     * @param cancellationToken The token that aborts the decode, or null.
+     *
+     * @return The decoded bitmap, or null if the tile was not cached, could not be read or was cancelled.
+     */
+    public Bitmap get(Tile tile, BitmapPool bitmapPool, int sampleSize, CancellationToken cancellationToken) {
+    
+        String key = getKey(tile);
+        File file;
+        
+        synchronized (this) {
+        
+            if (!ensureOpen() || (mEntries.get(key) == null)) {
+            
+                ++mMissCount;
+                return null;
+            
+            }
+            
+            appendJournal(READ, key, 0);
+            file = new File(mDirectory, key);
+        
+        }
+        
+        long start = System.nanoTime();
+        Bitmap bitmap = decode(file, tile, bitmapPool, sampleSize, cancellationToken);
+        long elapsed = (System.nanoTime() - start);
+        
+        // an aborted decode says nothing about the entry
+        if ((bitmap == null) && (cancellationToken != null) && cancellationToken.isCancelled())
+            return null;
+        
+        synchronized (this) {
+        
+            if (bitmap == null) {
+            
+                // the entry is unreadable, drop it so it gets written again
+                ++mMissCount;
+                removeEntry(key);
+                
+                return null;
+            
+            }
+            
+            ++mHitCount;
+            ++mReadCount;
+            
+            mReadTime += elapsed;
+        
+        }
+        
+        return bitmap;
+    
+    }
+    
+    /**
+     * Returns the average time taken to decode a cached tile, in milliseconds.
+     *
+     * @return The average time taken to decode a cached tile, in milliseconds.
+     */
+    public synchronized float getAverageReadTime() {
+        return ((mReadCount == 0) ? 0 : ((mReadTime / 1000000f) / mReadCount));
+    }
+    
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+    
+    /**
+     * Returns the fraction of lookups that found a cached tile, between 0 and 1.
+     *
+     * @return The fraction of lookups that found a cached tile.
+     */
+    public synchronized float getHitRatio() {
+    
+        int lookups = (mHitCount + mMissCount);
+        return ((lookups == 0) ? 0 : ((float) mHitCount / lookups));
+    
+    }
+    
+    private static String getKey(Tile tile) {
+    
+        String name = (String.valueOf(tile.getData()) + '|' + tile.getDetailLevel().getScale() + '|'
+            + tile.getColumn() + '|' + tile.getRow());
+        
+        try {
+        
+            byte[] digest = MessageDigest.getInstance("MD5").digest(name.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            
+            for (byte b : digest) {
+            
+                builder.append(Character.forDigit(((b >> 4) & 0xf), 16));
+                builder.append(Character.forDigit((b & 0xf), 16));
+            
+            }
+            
+            return builder.toString();
+        
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            return Integer.toHexString(name.hashCode());
+        }
+    
+    }
+    
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+    
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+    
+    /**
+     * Returns the number of bytes currently held by the cache.
+     *
+     * @return The number of bytes currently held by the cache.
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+    
+    // must be called with the lock held; the thread exits once idle and is started again by the next write
+    private ThreadPoolExecutor getWriteExecutor() {
+    
+        if (mWriteExecutor != null)
+            return mWriteExecutor;
+        
+        ThreadFactory threadFactory = new ThreadFactory() {
+        
+            @Override
+            public Thread newThread(final Runnable runnable) {
+            
+                Thread thread = new Thread(new Runnable() {
+                
+                    @Override
+                    public void run() {
+                    
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    
+                    }
+                
+                }, WRITER_THREAD_NAME);
+                
+                thread.setDaemon(true);
+                return thread;
+            
+            }
+        
+        };
+        
+        mWriteExecutor = new ThreadPoolExecutor(0, 1, WRITER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), threadFactory);
+        
+        return mWriteExecutor;
+    
+    }
+    
+    /**
+     * Queues the tile's bitmap to be encoded to disk on the cache's writer thread, and returns without
+     * waiting for the encode, so a render thread can hand the tile over to be drawn straight away.  The
+     * bitmap is copied first, as the tile goes on to draw it and may give it up before it is written.  Tiles
+     * already cached are skipped, as are tiles offered while the writer is too far behind; those are written
+     * when they are next decoded.
+     *
+     * @param tile   The tile the bitmap belongs to.
+     * @param bitmap The decoded bitmap, which the caller keeps.
+     */
+    public void offer(Tile tile, Bitmap bitmap) {
+    
+        if ((bitmap == null) || bitmap.isRecycled())
+            return;
+        
+        final String key = getKey(tile);
+        
+        final Bitmap.CompressFormat compressFormat;
+        final int quality;
+        
+        synchronized (this) {
+        
+            if ((mPendingWriteCount >= MAX_PENDING_WRITES) || !ensureOpen() || mEntries.containsKey(key))
+                return;
+            
+            compressFormat = mCompressFormat;
+            quality = mQuality;
+            
+            ++mPendingWriteCount;
+        
+        }
+        
+        // the tile's own bitmap may be reused for another tile by the time the writer gets to it
+        Bitmap.Config config = bitmap.getConfig();
+        final Bitmap copy = bitmap.copy(((config != null) ? config : Bitmap.Config.ARGB_8888), false);
+        
+        synchronized (this) {
+        
+            if (copy != null) {
+            
+                try {
+                
+                    getWriteExecutor().execute(new Runnable() {
+                    
+                        @Override
+                        public void run() {
+                        
+                            try {
+                                write(key, copy, compressFormat, quality);
+                            } finally {
+                            
+                                copy.recycle();
+                                
+                                synchronized (TileDiskCache.this) {
+                                    --mPendingWriteCount;
+                                }
+                            
+                            }
+                        
+                        }
+                    
+                    });
+                    
+                    return;
+                
+                } catch (RejectedExecutionException ex) {
+                    copy.recycle();
+                }
+            
+            }
+            
+            --mPendingWriteCount;
+        
+        }
+    
+    }
+    
+    /**
+     * Encodes the tile's bitmap to disk on the calling thread, which waits for the encode; render threads
+     * use offer instead.  Tiles already cached are skipped.
+     *
+     * @param tile   The tile the bitmap belongs to.
+     * @param bitmap The decoded bitmap.
+     */
+    public void put(Tile tile, Bitmap bitmap) {
+    
+        if ((bitmap == null) || bitmap.isRecycled())
+            return;
+        
+        String key = getKey(tile);
+        
+        Bitmap.CompressFormat compressFormat;
+        int quality;
+        
+        synchronized (this) {
+        
+            if (!ensureOpen() || mEntries.containsKey(key))
+                return;
+            
+            compressFormat = mCompressFormat;
+            quality = mQuality;
+        
+        }
+        
+        write(key, bitmap, compressFormat, quality);
+    
+    }
+    
+    // encodes to a temporary file which is renamed into place, unless the cache was cleared or closed meanwhile
+    private void write(String key, Bitmap bitmap, Bitmap.CompressFormat compressFormat, int quality) {
+    
+        File temp = new File(mDirectory, (key + '.' + Thread.currentThread().getId() + TEMP_FILE_SUFFIX));
+        
+        try {
+        
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(temp));
+            boolean written;
+            
+            try {
+                written = bitmap.compress(compressFormat, quality, output);
+            } finally {
+                output.close();
+            }
+            
+            if (!written) {
+            
+                temp.delete();
+                return;
+            
+            }
+        
+        } catch (IOException ex) {
+        
+            temp.delete();
+            return;
+        
+        }
+        
+        synchronized (this) {
+        
+            File file = new File(mDirectory, key);
+            
+            if (!mOpened || !temp.renameTo(file)) {
+            
+                temp.delete();
+                return;
+            
+            }
+            
+            long size = file.length();
+            Long previous = mEntries.put(key, size);
+            
+            if (previous != null)
+                mSize -= previous;
+            
+            mSize += size;
+            
+            appendJournal(CLEAN, key, size);
+            trimToSize(mMaxSize);
+        
+        }
+    
+    }
+    
+    // must be called with the lock held
+    private void readDirectory() {
+    
+        mEntries.clear();
+        mRedundantOperationCount = 0;
+        mSize = 0;
+        
+        File[] files = mDirectory.listFiles();
+        
+        if (files == null)
+            return;
+        
+        // without a journal, modification time is the best guess at the LRU order
+        Arrays.sort(files, new Comparator<File>() {
+        
+            @Override
+            public int compare(File lhs, File rhs) {
+            
+                long difference = (lhs.lastModified() - rhs.lastModified());
+                return ((difference < 0) ? -1 : ((difference > 0) ? 1 : 0));
+            
+            }
+        
+        });
+        
+        for (File file : files) {
+        
+            String name = file.getName();
+            
+            if (name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TEMP) || file.isDirectory())
+                continue;
+            
+            if (name.endsWith(TEMP_FILE_SUFFIX)) {
+            
+                file.delete();
+                continue;
+            
+            }
+            
+            long size = file.length();
+            
+            mEntries.put(name, size);
+            mSize += size;
+        
+        }
+    
+    }
+    
+    // must be called with the lock held
+    private void readJournal() throws IOException {
+    
+        mEntries.clear();
+        mRedundantOperationCount = 0;
+        mSize = 0;
+        
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(new File(mDirectory, JOURNAL_FILE)), "US-ASCII"));
+        
+        try {
+        
+            if (!JOURNAL_MAGIC.equals(reader.readLine()) || !JOURNAL_VERSION.equals(reader.readLine())
+                || !"".equals(reader.readLine()))
+                throw new IOException("Unexpected journal header");
+            
+            int lineCount = 0;
+            String line;
+            
+            while ((line = reader.readLine()) != null) {
+            
+                String[] parts = line.split(" ");
+                
+                if ((parts.length == 3) && parts[0].equals(CLEAN)) {
+                
+                    long size;
+                    
+                    try {
+                        size = Long.parseLong(parts[2]);
+                    } catch (NumberFormatException ex) {
+                        throw new IOException("Unexpected journal line: " + line);
+                    }
+                    
+                    mEntries.put(parts[1], size);
+                
+                } else if ((parts.length == 2) && parts[0].equals(READ))
+                    mEntries.get(parts[1]);
+                else if ((parts.length == 2) && parts[0].equals(REMOVE))
+                    mEntries.remove(parts[1]);
+                else
+                    throw new IOException("Unexpected journal line: " + line);
+                
+                ++lineCount;
+            
+            }
+            
+            mRedundantOperationCount = (lineCount - mEntries.size());
+        
+        } finally {
+            reader.close();
+        }
+        
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        
+        while (iterator.hasNext()) {
+        
+            Map.Entry<String, Long> entry = iterator.next();
+            
+            // entries whose file has gone missing are dropped, the journal is compacted eventually
+            if (new File(mDirectory, entry.getKey()).isFile())
+                mSize += entry.getValue();
+            else
+                iterator.remove();
+        
+        }
+        
+        File[] files = mDirectory.listFiles();
+        
+        if (files != null)
+            for (File file : files)
+                if (file.getName().endsWith(TEMP_FILE_SUFFIX) && !file.getName().equals(JOURNAL_FILE_TEMP))
+                    file.delete();
+    
+    }
+    
+    // must be called with the lock held
+    private void rebuildJournal() throws IOException {
+    
+        if (mJournalWriter != null)
+            mJournalWriter.close();
+        
+        mJournalWriter = null;
+        
+        File journal = new File(mDirectory, JOURNAL_FILE);
+        File journalTemp = new File(mDirectory, JOURNAL_FILE_TEMP);
+        
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalTemp), "US-ASCII"));
+        
+        try {
+        
+            writer.write(JOURNAL_MAGIC + '\n' + JOURNAL_VERSION + '\n' + '\n');
+            
+            for (Map.Entry<String, Long> entry : mEntries.entrySet())
+                writer.write(CLEAN + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+        
+        } finally {
+            writer.close();
+        }
+        
+        if (!journalTemp.renameTo(journal))
+            throw new IOException("Unable to replace the journal");
+        
+        mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journal, true), "US-ASCII"));
+        mRedundantOperationCount = 0;
+    
+    }
+    
+    // must be called with the lock held
+    private void removeEntry(String key) {
+    
+        Long size = mEntries.remove(key);
+        
+        if (size == null)
+            return;
+        
+        mSize -= size;
+        new File(mDirectory, key).delete();
+        
+        appendJournal(REMOVE, key, 0);
+    
+    }
+    
+    /**
+     * Sets how tiles are encoded when written.  PNG is used by default, which is lossless; JPEG or WEBP
+     * produce much smaller files for photographic tiles.
+     *
+     * Tiles are encoded on the writer thread, so the format doesn't hold up drawing, but it does decide how
+     * fast the writer keeps up: PNG can take longer to encode than the tile took to decode, and while the
+     * writer is behind, newly decoded tiles aren't cached and have to be decoded again next time.  JPEG is
+     * much faster to encode and suits opaque tiles.
+     *
+     * @param compressFormat The format tiles are encoded with.
+     * @param quality        The quality hint passed to Bitmap.compress, from 0 to 100.
+     */
+    public synchronized void setCompressFormat(Bitmap.CompressFormat compressFormat, int quality) {
+    
+        mCompressFormat = compressFormat;
+        mQuality = quality;
+    
+    }
+    
+    /**
+     * Sets the maximum number of bytes the cache may hold, deleting entries if necessary.
+     *
+     * @param maxSize The maximum number of bytes the cache may hold.
+     */
+    public synchronized void setMaxSize(long maxSize) {
+    
+        mMaxSize = maxSize;
+        
+        if (mOpened)
+            trimToSize(maxSize);
+    
+    }
+    
+    /**
+     * Deletes the least recently used entries until the cache holds no more than maxSize bytes.
+     *
+     * @param maxSize The number of bytes the cache should be trimmed to.
+     */
+    public synchronized void trimToSize(long maxSize) {
+    
+        if (!ensureOpen())
+            return;
+        
+        while ((mSize > maxSize) && !mEntries.isEmpty())
+            removeEntry(mEntries.keySet().iterator().next());
+    
+    }
+
+}
\ No newline at end of file
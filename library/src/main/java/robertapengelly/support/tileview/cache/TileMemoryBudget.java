@@ -0,0 +1,201 @@
+package robertapengelly.support.tileview.cache;
+
+import  android.app.ActivityManager;
+import  android.content.Context;
+
+import  robertapengelly.support.tileview.graphics.BitmapPool;
+
+/**
+ * A cap on the bytes held by tile bitmaps: those the tiles of one or more TileViews hold, plus those waiting
+ * in the memory cache and the bitmap pool.  A TileView reserves the bytes its tiles hold against the budget as
+ * decoded tiles arrive, and once the budget is exceeded it gives memory back in order of priority: the pool
+ * and the cache (which is where prefetched tiles wait), then the tiles of the previous DetailLevel, then the
+ * tiles in the viewport padding.  The tiles in the viewport itself are never given up, so a viewport too
+ * large for the budget leaves it exceeded.
+ *
+ * A budget shared between TileViews should be shared along with their cache and pool.
+ */
+public class TileMemoryBudget {
+
+    private static final int DEFAULT_MEMORY_CLASS_FRACTION = 4;
+    
+    private int mMaxSize, mReservedSize;
+    
+    private BitmapPool mBitmapPool;
+    private TileMemoryCache mTileMemoryCache;
+    
+    /** @param context A Context used to look up the memory class of the device. */
+    public TileMemoryBudget(Context context) {
+        this(getDefaultMaxSize(context));
+    }
+    
+    /** @param maxSize The maximum number of bytes tile bitmaps may hold. */
+    public TileMemoryBudget(int maxSize) {
+        mMaxSize = maxSize;
+    }
+    
+    public synchronized BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+    
+    /**
+     * Returns a size appropriate for most devices, one quarter of the memory class of the device (the heap
+     * each application is expected to stay within).
+     *
+     * @param context A Context used to look up the memory class of the device.
+     *
+     * @return A size appropriate for most devices.
+     */
+    public static int getDefaultMaxSize(Context context) {
+    
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long memoryClass;
+        
+        // the memory class is in megabytes, the heap limit of the runtime is close enough without one
+        if (activityManager != null)
+            memoryClass = ((long) activityManager.getMemoryClass() << 20);
+        else
+            memoryClass = Runtime.getRuntime().maxMemory();
+        
+        return (int) Math.min(Integer.MAX_VALUE, (memoryClass / DEFAULT_MEMORY_CLASS_FRACTION));
+    
+    }
+    
+    public synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+    
+    /**
+     * Returns the number of bytes reserved by the tiles of the TileViews using the budget.
+     *
+     * @return The number of bytes reserved.
+     */
+    public synchronized int getReservedSize() {
+        return mReservedSize;
+    }
+    
+    /**
+     * Returns the number of bytes held against the budget, the bytes reserved plus those held by the cache
+     * and the pool.
+     *
+     * @return The number of bytes held against the budget.
+     */
+    public synchronized int getSize() {
+    
+        int size = mReservedSize;
+        
+        if (mTileMemoryCache != null)
+            size += mTileMemoryCache.getSize();
+        
+        if (mBitmapPool != null)
+            size += mBitmapPool.getSize();
+        
+        return size;
+    
+    }
+    
+    public synchronized TileMemoryCache getTileMemoryCache() {
+        return mTileMemoryCache;
+    }
+    
+    /**
+     * Returns true once the bytes reserved fill the budget, leaving the cache no room; tiles decoded ahead of
+     * time (e.g., prefetched tiles) would only be evicted again.
+     *
+     * @return True if the bytes reserved fill the budget.
+     */
+    public synchronized boolean isExhausted() {
+        return (mReservedSize >= mMaxSize);
+    }
+    
+    /**
+     * Returns bytes reserved with reserve.
+     *
+     * @param size The number of bytes to give back.
+     */
+    public synchronized void release(int size) {
+        mReservedSize = Math.max(0, (mReservedSize - size));
+    }
+    
+    /**
+     * Reserves bytes held by tiles.  The reservation always succeeds, as the tiles already hold the bytes;
+     * if the budget is exceeded the caller should give memory back, starting with trimCaches.
+     *
+     * @param size The number of bytes to reserve.
+     *
+     * @return True if the budget can accommodate the reservation.
+     */
+    public synchronized boolean reserve(int size) {
+    
+        mReservedSize += size;
+        return (getSize() <= mMaxSize);
+    
+    }
+    
+    /**
+     * Sets the pool whose bitmaps are held against the budget.
+     *
+     * @param bitmapPool The BitmapPool instance, or null.
+     */
+    public synchronized void setBitmapPool(BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+    }
+    
+    /**
+     * Sets the maximum number of bytes tile bitmaps may hold, trimming the cache and the pool if necessary.
+     * The TileViews using the budget give up tiles as the next decoded tiles arrive.
+     *
+     * @param maxSize The maximum number of bytes tile bitmaps may hold.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+    
+        mMaxSize = maxSize;
+        trimCaches();
+    
+    }
+    
+    /**
+     * Sets the cache whose bitmaps are held against the budget.
+     *
+     * @param tileMemoryCache The TileMemoryCache instance, or null.
+     */
+    public synchronized void setTileMemoryCache(TileMemoryCache tileMemoryCache) {
+        mTileMemoryCache = tileMemoryCache;
+    }
+    
+    /**
+     * Trims the pool, which holds nothing decoded, then the cache, until the budget is met or both are empty.
+     *
+     * @return The number of bytes the budget is still exceeded by, or 0 if it is met.
+     */
+    public synchronized int trimCaches() {
+    
+        int excess = (getSize() - mMaxSize);
+        
+        if ((excess > 0) && (mBitmapPool != null)) {
+        
+            mBitmapPool.trimToSize(Math.max(0, (mBitmapPool.getSize() - excess)));
+            excess = (getSize() - mMaxSize);
+        
+        }
+        
+        if ((excess > 0) && (mTileMemoryCache != null)) {
+        
+            mTileMemoryCache.trimToSize(Math.max(0, (mTileMemoryCache.getSize() - excess)));
+            excess = (getSize() - mMaxSize);
+            
+            // the cache hands what it evicts to the pool
+            if ((excess > 0) && (mBitmapPool != null)) {
+            
+                mBitmapPool.trimToSize(Math.max(0, (mBitmapPool.getSize() - excess)));
+                excess = (getSize() - mMaxSize);
+            
+            }
+        
+        }
+        
+        return Math.max(0, excess);
+    
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,260 @@
+package robertapengelly.support.tileview.cache;
+
+import  android.graphics.Bitmap;
+
+import  java.util.Iterator;
+import  java.util.LinkedHashMap;
+import  java.util.Map;
+
+import  robertapengelly.support.tileview.detail.DetailLevel;
+import  robertapengelly.support.tileview.graphics.BitmapPool;
+import  robertapengelly.support.tileview.tile.Tile;
+
+/**
+ * A byte-bounded, least-recently-used cache of decoded tile bitmaps, keyed by DetailLevel, row and column.
+ *
+ * The cache only holds bitmaps that are not currently drawn; a tile leaving the viewport hands its bitmap
+ * over with put, and a tile entering the viewport takes it back with take, which removes the entry.  This
+ * means an evicted bitmap is never on screen and can safely be recycled.
+ */
+public class TileMemoryCache {
+
+    private static final int DEFAULT_MEMORY_FRACTION = 8;
+    
+    private int mEvictionCount, mHitCount, mMaxSize, mMissCount, mSize;
+    
+    private BitmapPool mBitmapPool;
+    
+    private final LinkedHashMap<Key, Bitmap> mBitmaps = new LinkedHashMap<>(0, 0.75f, true);
+    
+    // take runs for every tile entering the viewport, so it looks tiles up with this rather than a new key
+    private final Key mLookupKey = new Key();
+    
+    public TileMemoryCache() {
+        this(getDefaultMaxSize());
+    }
+    
+    /** @param maxSize The maximum number of bytes the cache may hold. */
+    public TileMemoryCache(int maxSize) {
+        mMaxSize = maxSize;
+    }
+    
+    /** Removes and recycles every bitmap held by the cache. */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+    
+    public synchronized BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+    
+    public static int getBitmapSize(Bitmap bitmap) {
+        return (bitmap.getRowBytes() * bitmap.getHeight());
+    }
+    
+    /**
+     * Returns a size appropriate for most devices, one eighth of the memory available to the application.
+     *
+     * @return A size appropriate for most devices.
+     */
+    public static int getDefaultMaxSize() {
+        return (int) Math.min(Integer.MAX_VALUE, (Runtime.getRuntime().maxMemory() / DEFAULT_MEMORY_FRACTION));
+    }
+    
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+    
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+    
+    public synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+    
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+    
+    /**
+     * Returns the number of bytes currently held by the cache.
+     *
+     * @return The number of bytes currently held by the cache.
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+    
+    /**
+     * Called (with the cache lock held) for every bitmap pushed out of the cache to make room.
+     * By default the bitmap is offered to the BitmapPool, if any, and recycled otherwise.
+     *
+     * @param bitmap The bitmap that was evicted.
+     */
+    protected void onBitmapEvicted(Bitmap bitmap) {
+    
+        if ((mBitmapPool == null) || !mBitmapPool.put(bitmap))
+            bitmap.recycle();
+    
+    }
+    
+    /**
+     * Hands a decoded bitmap that is no longer drawn over to the cache.
+     *
+     * @param tile   The tile the bitmap was decoded for.
+     * @param bitmap The decoded bitmap.
+     *
+     * @return True if the cache took ownership of the bitmap, false if the caller is still responsible for it.
+     */
+    public synchronized boolean put(Tile tile, Bitmap bitmap) {
+    
+        if ((bitmap == null) || bitmap.isRecycled())
+            return false;
+        
+        int size = getBitmapSize(bitmap);
+        
+        if (size > mMaxSize)
+            return false;
+        
+        Bitmap previous = mBitmaps.put(new Key().set(tile), bitmap);
+        mSize += size;
+        
+        // the same bitmap put again for the tile is only counted once, and stays in the cache
+        if (previous != null) {
+        
+            mSize -= getBitmapSize(previous);
+            
+            if (previous != bitmap)
+                onBitmapEvicted(previous);
+        
+        }
+        
+        trimToSize(mMaxSize);
+        return true;
+    
+    }
+    
+    /**
+     * Sets the pool that evicted bitmaps are offered to before being recycled.
+     *
+     * @param bitmapPool The BitmapPool instance, or null to recycle evicted bitmaps.
+     */
+    public synchronized void setBitmapPool(BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+    }
+    
+    /**
+     * Sets the maximum number of bytes the cache may hold, evicting bitmaps if necessary.
+     *
+     * @param maxSize The maximum number of bytes the cache may hold.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+    
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    
+    }
+    
+    /**
+     * Removes the bitmap cached for the tile and returns it; the caller takes ownership of the bitmap.
+     *
+     * @param tile The tile to look up.
+     *
+     * @return The cached bitmap, or null if none was cached.
+     */
+    public synchronized Bitmap take(Tile tile) {
+    
+        Bitmap bitmap = mBitmaps.remove(mLookupKey.set(tile));
+        
+        if (bitmap == null) {
+        
+            ++mMissCount;
+            return null;
+        
+        }
+        
+        mSize -= getBitmapSize(bitmap);
+        
+        if (bitmap.isRecycled()) {
+        
+            ++mMissCount;
+            return null;
+        
+        }
+        
+        ++mHitCount;
+        return bitmap;
+    
+    }
+    
+    /**
+     * Evicts the least recently used bitmaps until the cache holds no more than maxSize bytes.
+     *
+     * @param maxSize The number of bytes the cache should be trimmed to.
+     */
+    public synchronized void trimToSize(int maxSize) {
+    
+        Iterator<Map.Entry<Key, Bitmap>> iterator = mBitmaps.entrySet().iterator();
+        
+        while ((mSize > maxSize) && iterator.hasNext()) {
+        
+            Bitmap bitmap = iterator.next().getValue();
+            iterator.remove();
+            
+            mSize -= getBitmapSize(bitmap);
+            ++mEvictionCount;
+            
+            onBitmapEvicted(bitmap);
+        
+        }
+    
+    }
+    
+    private static class Key {
+    
+        int column, row;
+        DetailLevel level;
+        
+        @Override
+        public boolean equals(Object obj) {
+        
+            if (this == obj)
+                return true;
+            
+            if (obj instanceof Key) {
+            
+                Key key = (Key) obj;
+                return ((column == key.column) && (row == key.row) && level.equals(key.level));
+            
+            }
+            
+            return false;
+        
+        }
+        
+        @Override
+        public int hashCode() {
+        
+            int hash = 17;
+            hash = ((hash * 31) + column);
+            hash = ((hash * 31) + row);
+            hash = ((hash * 31) + level.hashCode());
+            
+            return hash;
+        
+        }
+        
+        Key set(Tile tile) {
+        
+            column = tile.getColumn();
+            level = tile.getDetailLevel();
+            row = tile.getRow();
+            
+            return this;
+        
+        }
+    
+    }
+
+}
\ No newline at end of file
@@ -1,23 +1,58 @@
 package robertapengelly.support.tileview.detail;
 
+import  android.graphics.Bitmap;
 import  android.graphics.Rect;
+import  android.support.annotation.IntDef;
 import  android.support.annotation.NonNull;
 
-import  java.util.HashSet;
-import  java.util.Set;
+import  java.lang.annotation.Retention;
+import  java.lang.annotation.RetentionPolicy;
 
+import  robertapengelly.support.tileview.cache.TileMemoryCache;
+import  robertapengelly.support.tileview.geom.FloatMathHelper;
 import  robertapengelly.support.tileview.tile.Tile;
+import  robertapengelly.support.tileview.tile.TilePool;
+import  robertapengelly.support.tileview.tile.TileSet;
 
 public class DetailLevel implements Comparable<DetailLevel> {
 
+    /**
+     * Tiles are decoded as RGB_565 if they are opaque and as ARGB_8888 if they have transparency.  RGB_565 is
+     * requested, which decoders only honour for images without an alpha channel.
+     */
+    public static final int BITMAP_CONFIG_AUTO = 0;
+    
+    /** Tiles are always decoded as ARGB_8888. */
+    public static final int BITMAP_CONFIG_ARGB_8888 = 1;
+    
+    private boolean mHasComputedState;
     private float mScale;
-    private int mTileHeight, mTileWidth;
+    private int mKeyIndex, mTileHeight, mTileWidth;
+    private int mBitmapConfigPolicy = BITMAP_CONFIG_AUTO;
+    
+    // the bitmaps the level's tiles hold, and the bytes saved by those decoded as RGB_565 rather than ARGB_8888
+    private int mBitmapByteCount, mBitmapCount, mSavedByteCount;
+    
+    // the rows and columns computed by the last call to computeCurrentState
+    private int mColumnEnd, mColumnStart, mRowEnd, mRowStart;
+    
+    // the rows and columns mTilesVisibleInViewport covers
+    private int mVisibleColumnEnd, mVisibleColumnStart, mVisibleRowEnd, mVisibleRowStart;
     
     private Object mData;
     
     private DetailLevelManager mDetailLevelManager;
-    private StateSnapshot mLastStateSnapshot;
-    private Set<Tile> mTilesVisibleInViewport = new HashSet<>();
+    private TileSet mTilesEnteringViewport = new TileSet(),
+                    mTilesLeavingViewport = new TileSet(),
+                    mTilesVisibleInViewport = new TileSet();
+    
+    // reused by computeCurrentState, which runs on every scroll, and computeTilesForViewport
+    private final Rect mCells = new Rect(), mViewport = new Rect();
+    
+    /** @hide **/
+    @IntDef({BITMAP_CONFIG_AUTO, BITMAP_CONFIG_ARGB_8888})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface BitmapConfigPolicy {}
     
     public DetailLevel(DetailLevelManager manager, float scale, Object data, int tileWidth, int tileHeight) {
     
@@ -49,7 +84,8 @@ public class DetailLevel implements Comparable<DetailLevel> {
         float offsetHeight = (mTileHeight * relativeScale);
         float offsetWidth = (mTileWidth * relativeScale);
         
-        Rect viewport = new Rect(mDetailLevelManager.getComputedViewport());
+        Rect viewport = mViewport;
+        viewport.set(mDetailLevelManager.getComputedViewport());
         viewport.bottom = Math.min(viewport.bottom, drawableHeight);
         viewport.left = Math.max(viewport.left, 0);
         viewport.right = Math.min(viewport.right, drawableWidth);
@@ -61,25 +97,156 @@ public class DetailLevel implements Comparable<DetailLevel> {
         int rowEnd = (int) Math.ceil(viewport.bottom / offsetHeight);
         int rowStart = (int) Math.floor(viewport.top / offsetHeight);
         
-        StateSnapshot stateSnapshot = new StateSnapshot(this, rowStart, rowEnd, columnStart, columnEnd);
+        boolean sameState = (mHasComputedState && (columnEnd == mColumnEnd) && (columnStart == mColumnStart) &&
+            (rowEnd == mRowEnd) && (rowStart == mRowStart));
         
-        boolean sameState = stateSnapshot.equals(mLastStateSnapshot);
-        mLastStateSnapshot = stateSnapshot;
+        mColumnEnd = columnEnd;
+        mColumnStart = columnStart;
+        mHasComputedState = true;
+        mRowEnd = rowEnd;
+        mRowStart = rowStart;
         
         return !sameState;
     
     }
     
+    /**
+     * Computes the rows and columns of this level that intersect the viewport supplied, without affecting
+     * the state computed by computeCurrentState.
+     *
+     * @param viewport The viewport, in pixels at the scale supplied.
+     * @param scale    The scale the viewport is expressed at.
+     * @param cells    Receives the columns as left (inclusive) to right (exclusive), and the rows as top
+     *                 (inclusive) to bottom (exclusive).
+     */
+    public void computeCellsForViewport(Rect viewport, float scale, Rect cells) {
+    
+        float relativeScale = (scale / mScale);
+        
+        int drawableHeight = FloatMathHelper.scale(mDetailLevelManager.getBaseHeight(), scale);
+        int drawableWidth = FloatMathHelper.scale(mDetailLevelManager.getBaseWidth(), scale);
+        
+        float offsetHeight = (mTileHeight * relativeScale);
+        float offsetWidth = (mTileWidth * relativeScale);
+        
+        int columnEnd = (int) Math.ceil(Math.min(viewport.right, drawableWidth) / offsetWidth);
+        int columnStart = (int) Math.floor(Math.max(viewport.left, 0) / offsetWidth);
+        
+        int rowEnd = (int) Math.ceil(Math.min(viewport.bottom, drawableHeight) / offsetHeight);
+        int rowStart = (int) Math.floor(Math.max(viewport.top, 0) / offsetHeight);
+        
+        cells.set(columnStart, rowStart, columnEnd, rowEnd);
+    
+    }
+    
+    /**
+     * Adds the tiles of this level that intersect the viewport supplied to a set, without affecting the
+     * state computed by computeCurrentState.  This is used to find tiles that will be needed shortly, e.g.,
+     * where a fling is going to stop.  The tiles are obtained from the TilePool, and the caller should release
+     * those it doesn't keep back to it.
+     *
+     * @param viewport The viewport, in pixels at the scale supplied.
+     * @param scale    The scale the viewport is expressed at.
+     * @param tiles    The set the tiles are added to.
+     */
+    public void computeTilesForViewport(Rect viewport, float scale, TileSet tiles) {
+    
+        Rect cells = mCells;
+        computeCellsForViewport(viewport, scale, cells);
+        
+        TilePool tilePool = getTilePool();
+        
+        for (int row = cells.top; row < cells.bottom; ++row) {
+        
+            for (int column = cells.left; column < cells.right; ++column) {
+            
+                Tile tile = tilePool.obtain(column, row, mTileWidth, mTileHeight, mData, this);
+                
+                // a cell the set already holds a tile for
+                if (!tiles.add(tile))
+                    tilePool.release(tile);
+            
+            }
+        
+        }
+    
+    }
+    
+    /**
+     * Updates the visible tiles to the rows and columns computed by computeCurrentState.  Only the strips
+     * of rows and columns that entered or left the viewport since the last computation are visited, so the
+     * work done is proportional to the edges of the viewport rather than its area; tiles that stay visible
+     * are kept as they are.  The tiles that entered and left are available from getTilesEnteringViewport
+     * and getTilesLeavingViewport until the next computation.
+     */
     public void computeVisibleTilesFromViewport() {
     
-        mTilesVisibleInViewport.clear();
+        if (!mHasComputedState)
+            throw new StateNotComputedException();
+        
+        mTilesEnteringViewport.clear();
+        mTilesLeavingViewport.clear();
+        
+        // the cells of the last computation that aren't part of this one leave
+        diffTiles(mVisibleRowStart, mVisibleRowEnd, mVisibleColumnStart, mVisibleColumnEnd, mRowStart, mRowEnd,
+            mColumnStart, mColumnEnd, false);
+        
+        // the cells of this computation that weren't part of the last one enter
+        diffTiles(mRowStart, mRowEnd, mColumnStart, mColumnEnd, mVisibleRowStart, mVisibleRowEnd,
+            mVisibleColumnStart, mVisibleColumnEnd, true);
+        
+        mVisibleColumnEnd = mColumnEnd;
+        mVisibleColumnStart = mColumnStart;
+        mVisibleRowEnd = mRowEnd;
+        mVisibleRowStart = mRowStart;
+    
+    }
+    
+    // visits the cells of the first range that are outside the second, a strip at a time
+    private void diffTiles(int rowStart, int rowEnd, int columnStart, int columnEnd, int otherRowStart,
+        int otherRowEnd, int otherColumnStart, int otherColumnEnd, boolean entering) {
+        
+        for (int row = rowStart; row < rowEnd; ++row) {
+        
+            if ((row < otherRowStart) || (row >= otherRowEnd)) {
+            
+                diffTiles(row, columnStart, columnEnd, entering);
+                continue;
+            
+            }
+            
+            // the row is part of both ranges, only the columns either side of the other range differ
+            diffTiles(row, columnStart, Math.min(columnEnd, otherColumnStart), entering);
+            diffTiles(row, Math.max(columnStart, otherColumnEnd), columnEnd, entering);
+        
+        }
+    
+    }
+    
+    private void diffTiles(int row, int columnStart, int columnEnd, boolean entering) {
+    
+        TilePool tilePool = getTilePool();
         
-        for (int rowCurrent = mLastStateSnapshot.rowStart; rowCurrent < mLastStateSnapshot.rowEnd; ++rowCurrent) {
+        for (int column = columnStart; column < columnEnd; ++column) {
         
-            for (int columnCurrent = mLastStateSnapshot.columnStart; columnCurrent < mLastStateSnapshot.columnEnd; ++columnCurrent) {
+            if (entering) {
             
-                Tile tile = new Tile(columnCurrent, rowCurrent, mTileWidth, mTileHeight, mData, this);
+                Tile tile = tilePool.obtain(column, row, mTileWidth, mTileHeight, mData, this);
+                
+                mTilesEnteringViewport.add(tile);
                 mTilesVisibleInViewport.add(tile);
+                
+                continue;
+            
+            }
+            
+            Tile tile = mTilesVisibleInViewport.getByKey(Tile.getKey(mKeyIndex, column, row));
+            
+            // tiles that left the viewport are recycled by whoever is still using them
+            if (tile != null) {
+            
+                mTilesLeavingViewport.add(tile);
+                mTilesVisibleInViewport.remove(tile);
             
             }
         
@@ -104,6 +271,43 @@ public class DetailLevel implements Comparable<DetailLevel> {
     
     }
     
+    /**
+     * Returns the number of bytes held by the bitmaps of the level's tiles, whether drawn or waiting to be.
+     * Bitmaps held by the memory cache aren't counted.
+     *
+     * @return The number of bytes held by the level's tiles.
+     */
+    public int getBitmapByteCount() {
+        return mBitmapByteCount;
+    }
+    
+    /**
+     * Returns the config providers should decode the level's tiles with, according to its policy.
+     *
+     * @return The Bitmap.Config to decode the level's tiles with.
+     */
+    public Bitmap.Config getBitmapConfig() {
+    
+        if (mBitmapConfigPolicy == BITMAP_CONFIG_ARGB_8888)
+            return Bitmap.Config.ARGB_8888;
+        
+        return Bitmap.Config.RGB_565;
+    
+    }
+    
+    public @BitmapConfigPolicy int getBitmapConfigPolicy() {
+        return mBitmapConfigPolicy;
+    }
+    
+    /**
+     * Returns the number of the level's tiles currently holding a bitmap.
+     *
+     * @return The number of the level's tiles holding a bitmap.
+     */
+    public int getBitmapCount() {
+        return mBitmapCount;
+    }
+    
     public Object getData() {
         return mData;
     }
@@ -116,10 +320,51 @@ public class DetailLevel implements Comparable<DetailLevel> {
         return (mDetailLevelManager.getScale() / mScale);
     }
     
+    /**
+     * Returns the largest power of two the level's tiles can be decoded smaller than their full size by
+     * without being drawn larger than they were decoded at the current scale.
+     *
+     * @return The sample size, 1 unless the scale is at most half the level's scale.
+     */
+    public int getSampleSize() {
+    
+        float relativeScale = getRelativeScale();
+        int sampleSize = 1;
+        
+        if (relativeScale <= 0)
+            return sampleSize;
+        
+        while ((sampleSize * 2 * relativeScale) <= 1)
+            sampleSize *= 2;
+        
+        return sampleSize;
+    
+    }
+    
+    /**
+     * Returns the index that stands in for the level in tile keys, see Tile.getKey.  Assigned by the
+     * DetailLevelManager the level is added to; levels of the same scale share an index.
+     *
+     * @return The key index of the level.
+     */
+    public int getKeyIndex() {
+        return mKeyIndex;
+    }
+    
     public float getScale() {
         return mScale;
     }
     
+    /**
+     * Returns the number of bytes the bitmaps of the level's tiles would take up on top of getBitmapByteCount
+     * had those decoded as RGB_565 been decoded as ARGB_8888.
+     *
+     * @return The number of bytes saved by decoding opaque tiles as RGB_565.
+     */
+    public int getSavedByteCount() {
+        return mSavedByteCount;
+    }
+    
     public int getTileHeight() {
         return mTileHeight;
     }
@@ -128,14 +373,36 @@ public class DetailLevel implements Comparable<DetailLevel> {
         return mTileWidth;
     }
     
+    /**
+     * Returns the tiles that entered the viewport in the last call to computeVisibleTilesFromViewport.
+     *
+     * @return The tiles that entered the viewport.
+     */
+    public TileSet getTilesEnteringViewport() {
+        return mTilesEnteringViewport;
+    }
+    
+    /**
+     * Returns the tiles that left the viewport in the last call to computeVisibleTilesFromViewport.
+     *
+     * @return The tiles that left the viewport.
+     */
+    public TileSet getTilesLeavingViewport() {
+        return mTilesLeavingViewport;
+    }
+    
+    public TilePool getTilePool() {
+        return mDetailLevelManager.getTilePool();
+    }
+    
     /**
      * Returns a list of Tile instances describing the currently visible viewport.
      *
      * @return List of Tile instances describing the currently visible viewport.
      */
-    public Set<Tile> getVisibleTilesFromLastViewportComputation() {
+    public TileSet getVisibleTilesFromLastViewportComputation() {
     
-        if (mLastStateSnapshot == null)
+        if (!mHasComputedState)
             throw new StateNotComputedException();
         
         return mTilesVisibleInViewport;
@@ -143,7 +410,7 @@ public class DetailLevel implements Comparable<DetailLevel> {
     }
     
     public boolean hasComputedState() {
-        return (mLastStateSnapshot != null);
+        return mHasComputedState;
     }
     
     @Override
@@ -156,49 +423,66 @@ public class DetailLevel implements Comparable<DetailLevel> {
     
     /** Ensures that computeCurrentState will return true, indicating a change has occurred. */
     public void invalidate() {
-        mLastStateSnapshot = null;
+        mHasComputedState = false;
     }
     
-    public static class StateNotComputedException extends IllegalStateException {
+    /**
+     * Adds a bitmap a tile of the level took to the level's memory accounting.  Called by Tile, on the UI
+     * thread.
+     *
+     * @param bitmap The bitmap the tile took.
+     */
+    public void onBitmapAttached(Bitmap bitmap) {
     
-        public StateNotComputedException() {
-            super("Grid has not been computed; " +
-                "you must call computeCurrentState at some point prior to calling " +
-                    "getVisibleTilesFromLastViewportComputation." );
-        }
+        int size = TileMemoryCache.getBitmapSize(bitmap);
+        
+        ++mBitmapCount;
+        mBitmapByteCount += size;
+        
+        if (bitmap.getConfig() == Bitmap.Config.RGB_565)
+            mSavedByteCount += size;
     
     }
     
-    private static class StateSnapshot {
+    /**
+     * Removes a bitmap a tile of the level gave up from the level's memory accounting.  Called by Tile, on the
+     * UI thread, before the bitmap is released.
+     *
+     * @param bitmap The bitmap the tile gave up.
+     */
+    public void onBitmapDetached(Bitmap bitmap) {
     
-        int columnEnd, columnStart, rowEnd, rowStart;
-        DetailLevel level;
-        
-        public StateSnapshot(DetailLevel level, int rowStart, int rowEnd, int columnStart, int columnEnd) {
-        
-            this.columnEnd = columnEnd;
-            this.columnStart = columnStart;
-            this.level = level;
-            this.rowEnd = rowEnd;
-            this.rowStart = rowStart;
+        int size = TileMemoryCache.getBitmapSize(bitmap);
         
-        }
-        
-        public boolean equals(Object obj) {
-        
-            if (obj == this)
-                return true;
-            
-            if (obj instanceof StateSnapshot) {
-            
-                StateSnapshot snapshot = (StateSnapshot) obj;
-                return ((columnEnd == snapshot.columnEnd) && (columnStart == snapshot.columnStart) &&
-                    level.equals(snapshot.level) && (rowEnd == snapshot.rowEnd) && (rowStart == snapshot.rowStart));
-            
-            }
-            
-            return false;
+        --mBitmapCount;
+        mBitmapByteCount -= size;
         
+        if (bitmap.getConfig() == Bitmap.Config.RGB_565)
+            mSavedByteCount -= size;
+    
+    }
+    
+    /**
+     * Sets the config policy the level's tiles are decoded with; BITMAP_CONFIG_AUTO by default.  The built-in
+     * providers and the disk cache follow it, and custom providers can through getBitmapConfig.
+     *
+     * @param bitmapConfigPolicy Either BITMAP_CONFIG_AUTO or BITMAP_CONFIG_ARGB_8888.
+     */
+    public void setBitmapConfigPolicy(@BitmapConfigPolicy int bitmapConfigPolicy) {
+        mBitmapConfigPolicy = bitmapConfigPolicy;
+    }
+    
+    // set by DetailLevelManager when the level is added
+    void setKeyIndex(int keyIndex) {
+        mKeyIndex = keyIndex;
+    }
+    
+    public static class StateNotComputedException extends IllegalStateException {
+    
+        public StateNotComputedException() {
+            super("Grid has not been computed; " +
+                "you must call computeCurrentState at some point prior to calling " +
+                    "getVisibleTilesFromLastViewportComputation." );
         }
     
     }
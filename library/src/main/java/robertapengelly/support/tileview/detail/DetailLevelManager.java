@@ -2,26 +2,47 @@ package robertapengelly.support.tileview.detail;
 
 import  android.graphics.Rect;
 
+import  java.util.Arrays;
 import  java.util.Collections;
-import  java.util.LinkedList;
+import  java.util.List;
 
 import  robertapengelly.support.tileview.geom.FloatMathHelper;
+import  robertapengelly.support.tileview.tile.Tile;
+import  robertapengelly.support.tileview.tile.TilePool;
 
 public class DetailLevelManager {
 
-    private boolean mDetailLevelLocked;
+    /** The default hysteresis, as a fraction of the scale; see setHysteresis. */
+    public static final float DEFAULT_HYSTERESIS = 0.1f;
+    
+    /** The viewport padding is suspended because tile memory exceeds its budget. */
+    public static final int PADDING_SUSPENDED_BY_BUDGET = 1;
+    
+    /** The viewport padding is suspended in response to a trim event. */
+    public static final int PADDING_SUSPENDED_BY_TRIM = 2;
+    
+    private static final DetailLevel[] NO_DETAIL_LEVELS = new DetailLevel[0];
+    
+    private boolean mDetailLevelChangesDeferred, mDetailLevelLocked;
+    private float mHysteresis = DEFAULT_HYSTERESIS;
     
     protected float mScale = 1;
     
-    private int mBaseHeight, mBaseWidth, mPadding, mScaledHeight, mScaledWidth;
+    private int mBaseHeight, mBaseWidth, mKeyScaleCount, mPadding, mPaddingSuspensions, mScaledHeight, mScaledWidth;
     
     private DetailLevel mCurrentDetailLevel;
     private DetailLevelChangeListener mDetailLevelChangeListener;
-    protected LinkedList<DetailLevel> mDetailLevelLinkedList  = new LinkedList<>();
+    
+    // sorted by scale, so the level for a scale can be found with a binary search
+    private DetailLevel[] mDetailLevels = NO_DETAIL_LEVELS;
+    
+    // the scales given key indices so far, by index; see DetailLevel.getKeyIndex
+    private float[] mKeyScales = new float[Tile.MAX_LEVEL_INDEX + 1];
     
     private Rect mComputedScaledViewport = new Rect();
     private Rect mComputedViewport = new Rect();
     private Rect mViewport = new Rect();
+    private TilePool mTilePool = new TilePool();
     
     public DetailLevelManager() {
         update();
@@ -31,15 +52,59 @@ public class DetailLevelManager {
     
         DetailLevel detailLevel = new DetailLevel(this, scale, data, tileWidth, tileHeight);
         
-        if (mDetailLevelLinkedList.contains(detailLevel))            return;
+        for (DetailLevel level : mDetailLevels)
+            if (level.equals(detailLevel))
+                return;
+        
+        checkTileCount(detailLevel, mBaseWidth, mBaseHeight);
+        detailLevel.setKeyIndex(getKeyIndex(scale));
         
-        mDetailLevelLinkedList.add(detailLevel);
-        Collections.sort(mDetailLevelLinkedList);
+        DetailLevel[] detailLevels = Arrays.copyOf(mDetailLevels, (mDetailLevels.length + 1));
+        detailLevels[mDetailLevels.length] = detailLevel;
+        
+        Arrays.sort(detailLevels);
+        mDetailLevels = detailLevels;
         
         update();
     
     }
     
+    /**
+     * Switches to the DetailLevel matching the current scale straight away, even while changes are deferred.
+     * Changes stay deferred afterwards.
+     */
+    public void applyDeferredDetailLevel() {
+    
+        boolean deferred = mDetailLevelChangesDeferred;
+        mDetailLevelChangesDeferred = false;
+        
+        update();
+        mDetailLevelChangesDeferred = deferred;
+    
+    }
+    
+    // tile keys leave 28 bits each for rows and columns, so larger grids are refused here rather than as they draw
+    private static void checkTileCount(DetailLevel level, int width, int height) {
+    
+        double columnCount = Math.ceil((double) width * level.getScale() / level.getTileWidth());
+        double rowCount = Math.ceil((double) height * level.getScale() / level.getTileHeight());
+        
+        if ((columnCount > (Tile.MAX_CELL_INDEX + 1)) || (rowCount > (Tile.MAX_CELL_INDEX + 1)))
+            throw new IllegalArgumentException("The detail level at scale " + level.getScale() + " would be "
+                + (long) columnCount + " by " + (long) rowCount + " tiles, detail levels are limited to "
+                + (Tile.MAX_CELL_INDEX + 1) + " tiles a side");
+    
+    }
+    
+    /**
+     * Defers DetailLevel changes, e.g., while a pinch is in progress and the scale is still moving, so a level
+     * isn't decoded only to be dropped a moment later.  The scale keeps updating, and the level catches up
+     * when applyDeferredDetailLevel or resumeDetailLevelChanges is invoked.
+     */
+    public void deferDetailLevelChanges() {
+        mDetailLevelChangesDeferred = true;
+    }
+    
     public int getBaseHeight() {
         return mBaseHeight;
     }
@@ -48,6 +113,54 @@ public class DetailLevelManager {
         return mBaseWidth;
     }
     
+    /**
+     * Returns the number of bytes held by the decoded tiles of every DetailLevel; see
+     * DetailLevel.getBitmapByteCount.
+     *
+     * @return The number of bytes held by decoded tiles.
+     */
+    public int getBitmapByteCount() {
+    
+        int byteCount = 0;
+        
+        for (DetailLevel level : mDetailLevels)
+            byteCount += level.getBitmapByteCount();
+        
+        return byteCount;
+    
+    }
+    
+    /**
+     * Returns the DetailLevel with the next smaller scale than the one supplied, e.g., to find a coarser
+     * level whose tiles can stand in for tiles that haven't been decoded yet.
+     *
+     * @param level The DetailLevel to find the next coarser level for.
+     *
+     * @return The next coarser DetailLevel, or null if there is none.
+     */
+    public DetailLevel getCoarserDetailLevel(DetailLevel level) {
+    
+        DetailLevel[] detailLevels = mDetailLevels;
+        
+        float scale = level.getScale();
+        int high = detailLevels.length, low = 0;
+        
+        // find the first level whose scale is at least the one supplied, the level before it is coarser
+        while (low < high) {
+        
+            int middle = ((low + high) >>> 1);
+            
+            if (detailLevels[middle].getScale() < scale)
+                low = (middle + 1);
+            else
+                high = middle;
+        
+        }
+        
+        return ((low > 0) ? detailLevels[low - 1] : null);
+    
+    }
+    
     public Rect getComputedScaledViewport(float scale){
     
         mComputedScaledViewport.set((int) (mComputedViewport.left * scale), (int) (mComputedViewport.top * scale),
@@ -65,40 +178,131 @@ public class DetailLevelManager {
         return mCurrentDetailLevel;
     }
     
+    /**
+     * Returns the DetailLevel for the current scale, as getDetailLevelForScale(float) does.  This is the level
+     * update switches to, once the hysteresis allows it, so it can be overridden to change how levels are
+     * chosen.
+     *
+     * @return The matching DetailLevel, or null if no levels have been added.
+     */
     public DetailLevel getDetailLevelForScale() {
+        return getDetailLevelForScale(mScale);
+    }
     
-        if (mDetailLevelLinkedList.size() == 0)
-            return null;
+    /**
+     * Returns the DetailLevel that would be used at the scale supplied: the smallest level whose scale is
+     * at least the one supplied, or the largest level if none is.  The lock state is ignored.
+     *
+     * @param scale The scale to find a DetailLevel for.
+     *
+     * @return The matching DetailLevel, or null if no levels have been added.
+     */
+    public DetailLevel getDetailLevelForScale(float scale) {
+    
+        DetailLevel[] detailLevels = mDetailLevels;
         
-        if (mDetailLevelLinkedList.size() == 1)
-            return mDetailLevelLinkedList.get(0);
+        if (detailLevels.length == 0)
+            return null;
         
-        DetailLevel match = null;
-        int index = (mDetailLevelLinkedList.size() - 1);
+        int high = (detailLevels.length - 1), low = 0;
         
-        for (int i = index; i >= 0; --i) {
+        while (low < high) {
         
-            match = mDetailLevelLinkedList.get(index);
-            
-            if (match.getScale() < mScale) {
-            
-                if (i < index)
-                    match = mDetailLevelLinkedList.get(i + 1);
-                
-                break;
+            int middle = ((low + high) >>> 1);
             
-            }
+            if (detailLevels[middle].getScale() < scale)
+                low = (middle + 1);
+            else
+                high = middle;
         
         }
         
+        return detailLevels[low];
+    
+    }
+    
+    /**
+     * Returns the DetailLevels added, sorted by scale.  The list can't be modified; levels are added with
+     * addDetailLevel and removed with resetDetailLevels.
+     *
+     * @return A read-only view of the DetailLevels.
+     */
+    protected List<DetailLevel> getDetailLevels() {
+        return Collections.unmodifiableList(Arrays.asList(mDetailLevels));
+    }
+    
+    /**
+     * Returns the DetailLevel to switch to, taking the hysteresis into account: the current level is kept
+     * while the scale is past the boundary between it and the level supplied by no more than the hysteresis.
+     *
+     * @param match The DetailLevel matching the current scale, as returned by getDetailLevelForScale.
+     *
+     * @return The DetailLevel to switch to, or null if there is none.
+     */
+    private DetailLevel getDetailLevelWithHysteresis(DetailLevel match) {
+    
+        if ((match == null) || (mCurrentDetailLevel == null) || (mHysteresis <= 0))
+            return match;
+        
+        float currentScale = mCurrentDetailLevel.getScale(), matchScale = match.getScale();
+        
+        // zooming in, the boundary is the current level's scale, which the scale has only just passed
+        if ((matchScale > currentScale) && (mScale > currentScale) && (mScale <= (currentScale * (1 + mHysteresis))))
+            return mCurrentDetailLevel;
+        
+        // zooming out, the boundary is the coarser level's scale, which the scale has only just dropped to
+        if ((matchScale < currentScale) && (mScale <= matchScale) && ((mScale * (1 + mHysteresis)) > matchScale))
+            return mCurrentDetailLevel;
+        
         return match;
     
     }
     
+    // levels of the same scale share an index; indices outlive resetDetailLevels, so old tiles can't collide with new
+    private int getKeyIndex(float scale) {
+    
+        for (int i = 0; i < mKeyScaleCount; ++i)
+            if (mKeyScales[i] == scale)
+                return i;
+        
+        if (mKeyScaleCount > Tile.MAX_LEVEL_INDEX)
+            throw new IllegalStateException("A DetailLevelManager is limited to " + (Tile.MAX_LEVEL_INDEX + 1)
+                + " distinct detail level scales");
+        
+        mKeyScales[mKeyScaleCount] = scale;
+        return mKeyScaleCount++;
+    
+    }
+    
+    public float getHysteresis() {
+        return mHysteresis;
+    }
+    
     public boolean getIsLocked() {
         return mDetailLevelLocked;
     }
     
+    /**
+     * Returns true if the viewport padding is suspended, for whatever reason.
+     *
+     * @return True if the viewport padding is suspended.
+     */
+    public boolean getIsViewportPaddingSuspended() {
+        return (mPaddingSuspensions != 0);
+    }
+    
+    /**
+     * Returns true if the viewport padding is suspended for the reason supplied, whether or not it is also
+     * suspended for another.
+     *
+     * @param reason PADDING_SUSPENDED_BY_BUDGET or PADDING_SUSPENDED_BY_TRIM.
+     *
+     * @return True if the viewport padding is suspended for the reason supplied.
+     */
+    public boolean getIsViewportPaddingSuspended(int reason) {
+        return ((mPaddingSuspensions & reason) != 0);
+    }
+    
     public float getScale() {
         return mScale;
     }
@@ -111,13 +315,22 @@ public class DetailLevelManager {
         return mScaledWidth;
     }
     
+    /**
+     * Returns the pool the tiles of every detail level are taken from and returned to.
+     *
+     * @return The TilePool of this manager.
+     */
+    public TilePool getTilePool() {
+        return mTilePool;
+    }
+    
     public Rect getViewport() {
         return mViewport;
     }
     
     public void invalidateAll() {
     
-        for (DetailLevel level : mDetailLevelLinkedList)
+        for (DetailLevel level : mDetailLevels)
             level.invalidate();
     
     }
@@ -134,15 +347,47 @@ public class DetailLevelManager {
     
     public void resetDetailLevels() {
     
-        mDetailLevelLinkedList.clear();
+        mDetailLevels = NO_DETAIL_LEVELS;
+        update();
+    
+    }
+    
+    /** Ends a deferral started with {@link #deferDetailLevelChanges()}, switching level if the scale calls for it. */
+    public void resumeDetailLevelChanges() {
+    
+        mDetailLevelChangesDeferred = false;
         update();
     
     }
     
+    /**
+     * Ends a suspension started with {@link #suspendViewportPadding(int)} for the same reason.  The padding
+     * only comes back once it is no longer suspended for any reason.
+     *
+     * @param reason PADDING_SUSPENDED_BY_BUDGET or PADDING_SUSPENDED_BY_TRIM.
+     */
+    public void resumeViewportPadding(int reason) {
+    
+        mPaddingSuspensions &= ~reason;
+        updateComputedViewport();
+    
+    }
+    
     public void setDetailLevelChangeListener(DetailLevelChangeListener detailLevelChangeListener) {
         mDetailLevelChangeListener = detailLevelChangeListener;
     }
     
+    /**
+     * Sets how far past the boundary between two DetailLevels the scale has to move before the level changes,
+     * as a fraction of the scale, so a scale hovering near a boundary doesn't flip between levels and throw
+     * away a viewport of tiles each time.  Defaults to DEFAULT_HYSTERESIS; 0 switches exactly at the boundary.
+     *
+     * @param hysteresis The hysteresis, as a fraction of the scale.
+     */
+    public void setHysteresis(float hysteresis) {
+        mHysteresis = Math.max(0, hysteresis);
+    }
+    
     public void setScale(float scale) {
     
         mScale = scale;
@@ -152,6 +397,9 @@ public class DetailLevelManager {
     
     public void setSize(int width, int height) {
     
+        for (DetailLevel level : mDetailLevels)
+            checkTileCount(level, width, height);
+        
         mBaseHeight = height;
         mBaseWidth = width;
         
@@ -173,6 +421,21 @@ public class DetailLevelManager {
     
     }
     
+    /**
+     * Stops the viewport being padded until resumeViewportPadding is invoked for the same reason, e.g., while
+     * memory is short, so only the tiles that can actually be seen qualify as visible.  The padding set is
+     * kept.  Each reason is tracked on its own, so the memory budget and trim events can't end one another's
+     * suspension.
+     *
+     * @param reason PADDING_SUSPENDED_BY_BUDGET or PADDING_SUSPENDED_BY_TRIM.
+     */
+    public void suspendViewportPadding(int reason) {
+    
+        mPaddingSuspensions |= reason;
+        updateComputedViewport();
+    
+    }
+    
     /** Unlocks a DetailLevel locked with {@link #lockDetailLevel()}. */
     public void unlockDetailLevel() {
         mDetailLevelLocked = false;
@@ -182,9 +445,10 @@ public class DetailLevelManager {
     
         boolean detailLevelChanged = false;
         
-        if (!mDetailLevelLocked) {
+        // an initial level is picked even while changes are deferred
+        if (!mDetailLevelLocked && (!mDetailLevelChangesDeferred || (mCurrentDetailLevel == null))) {
         
-            DetailLevel matchingLevel = getDetailLevelForScale();
+            DetailLevel matchingLevel = getDetailLevelWithHysteresis(getDetailLevelForScale());
             
             if (matchingLevel != null) {
             
@@ -205,12 +469,13 @@ public class DetailLevelManager {
     
     private void updateComputedViewport() {
     
+        int padding = ((mPaddingSuspensions != 0) ? 0 : mPadding);
         mComputedViewport.set(mViewport);
         
-        mComputedViewport.bottom += mPadding;
-        mComputedViewport.left -= mPadding;
-        mComputedViewport.right += mPadding;
-        mComputedViewport.top -= mPadding;
+        mComputedViewport.bottom += padding;
+        mComputedViewport.left -= padding;
+        mComputedViewport.right += padding;
+        mComputedViewport.top -= padding;
     
     }
     
@@ -0,0 +1,273 @@
+package robertapengelly.support.tileview.graphics;
+
+import  android.graphics.Bitmap;
+import  android.graphics.BitmapFactory;
+import  android.os.Build;
+
+import  java.util.HashMap;
+import  java.util.Iterator;
+import  java.util.LinkedList;
+
+import  robertapengelly.support.tileview.cache.TileMemoryCache;
+
+/**
+ * Holds mutable bitmaps that are no longer drawn so they can be handed back to BitmapFactory through
+ * BitmapFactory.Options.inBitmap, rather than allocating a new bitmap for every tile decode.
+ *
+ * Bitmaps are matched on width, height and config, which satisfies the reuse rules of every API level
+ * that supports inBitmap (Honeycomb and above).  On older devices the pool stays empty.
+ */
+public class BitmapPool {
+
+    private static final int DEFAULT_MEMORY_FRACTION = 16;
+    
+    private int mHitCount, mMaxSize, mMissCount, mSize;
+    
+    private final HashMap<Key, LinkedList<Bitmap>> mBitmaps = new HashMap<>();
+    private final Key mLookupKey = new Key();
+    
+    public BitmapPool() {
+        this(getDefaultMaxSize());
+    }
+    
+    /** @param maxSize The maximum number of bytes the pool may hold. */
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+    
+    /** Recycles every bitmap held by the pool. */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+    
+    /**
+     * Removes and returns a bitmap matching the dimensions and config supplied.
+     *
+     * @param width  The width of the bitmap required.
+     * @param height The height of the bitmap required.
+     * @param config The config of the bitmap required.
+     *
+     * @return A mutable bitmap with undefined content, or null if none is available.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+    
+        mLookupKey.set(width, height, config);
+        LinkedList<Bitmap> bitmaps = mBitmaps.get(mLookupKey);
+        
+        while ((bitmaps != null) && !bitmaps.isEmpty()) {
+        
+            Bitmap bitmap = bitmaps.removeFirst();
+            mSize -= TileMemoryCache.getBitmapSize(bitmap);
+            
+            if (!bitmap.isRecycled()) {
+            
+                ++mHitCount;
+                return bitmap;
+            
+            }
+        
+        }
+        
+        ++mMissCount;
+        return null;
+    
+    }
+    
+    /**
+     * Returns a size appropriate for most devices, one sixteenth of the memory available to the application.
+     *
+     * @return A size appropriate for most devices.
+     */
+    public static int getDefaultMaxSize() {
+        return (int) Math.min(Integer.MAX_VALUE, (Runtime.getRuntime().maxMemory() / DEFAULT_MEMORY_FRACTION));
+    }
+    
+    /**
+     * Returns the number of requests that were satisfied by a pooled bitmap.
+     *
+     * @return The number of requests that were satisfied by a pooled bitmap.
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+    
+    public synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+    
+    /**
+     * Returns the number of requests that found no matching bitmap.
+     *
+     * @return The number of requests that found no matching bitmap.
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+    
+    /**
+     * Returns the number of bytes currently held by the pool.
+     *
+     * @return The number of bytes currently held by the pool.
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+    
+    /**
+     * Returns true if the platform supports BitmapFactory.Options.inBitmap.
+     *
+     * @return True if the platform supports BitmapFactory.Options.inBitmap.
+     */
+    public static boolean isSupported() {
+        return (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB);
+    }
+    
+    /**
+     * Prepares decode options so that the decoded bitmap is mutable (and so can be pooled later), and reuses
+     * a pooled bitmap if one matches the expected dimensions.  Callers should be prepared for the decode to
+     * throw an IllegalArgumentException if the encoded image turns out not to match, and retry with
+     * options.inBitmap set to null.
+     *
+     * @param options The options that will be passed to BitmapFactory.
+     * @param width   The expected width of the decoded bitmap.
+     * @param height  The expected height of the decoded bitmap.
+     */
+    public void prepareOptions(BitmapFactory.Options options, int width, int height) {
+    
+        if (!isSupported())
+            return;
+        
+        Bitmap.Config config = ((options.inPreferredConfig != null) ? options.inPreferredConfig : Bitmap.Config.ARGB_8888);
+        
+        options.inMutable = true;
+        options.inBitmap = get(width, height, config);
+    
+    }
+    
+    /**
+     * Offers a bitmap that is no longer drawn to the pool.
+     *
+     * @param bitmap The bitmap to pool.
+     *
+     * @return True if the pool took ownership of the bitmap, false if the caller is still responsible for it.
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+    
+        if (!isSupported() || (bitmap == null) || bitmap.isRecycled() || !bitmap.isMutable()
+            || (bitmap.getConfig() == null))
+            return false;
+        
+        int size = TileMemoryCache.getBitmapSize(bitmap);
+        
+        if ((mSize + size) > mMaxSize)
+            return false;
+        
+        mLookupKey.set(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        LinkedList<Bitmap> bitmaps = mBitmaps.get(mLookupKey);
+        
+        if (bitmaps == null) {
+        
+            bitmaps = new LinkedList<>();
+            mBitmaps.put(new Key(mLookupKey), bitmaps);
+        
+        }
+        
+        bitmaps.addLast(bitmap);
+        mSize += size;
+        
+        return true;
+    
+    }
+    
+    /**
+     * Sets the maximum number of bytes the pool may hold, recycling bitmaps if necessary.
+     *
+     * @param maxSize The maximum number of bytes the pool may hold.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+    
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    
+    }
+    
+    /**
+     * Recycles pooled bitmaps until the pool holds no more than maxSize bytes.
+     *
+     * @param maxSize The number of bytes the pool should be trimmed to.
+     */
+    public synchronized void trimToSize(int maxSize) {
+    
+        Iterator<LinkedList<Bitmap>> iterator = mBitmaps.values().iterator();
+        
+        while ((mSize > maxSize) && iterator.hasNext()) {
+        
+            LinkedList<Bitmap> bitmaps = iterator.next();
+            
+            while ((mSize > maxSize) && !bitmaps.isEmpty()) {
+            
+                Bitmap bitmap = bitmaps.removeFirst();
+                mSize -= TileMemoryCache.getBitmapSize(bitmap);
+                
+                bitmap.recycle();
+            
+            }
+            
+            if (bitmaps.isEmpty())
+                iterator.remove();
+        
+        }
+    
+    }
+    
+    private static class Key {
+    
+        int height, width;
+        Bitmap.Config config;
+        
+        Key() {}
+        
+        Key(Key key) {
+            set(key.width, key.height, key.config);
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+        
+            if (this == obj)
+                return true;
+            
+            if (obj instanceof Key) {
+            
+                Key key = (Key) obj;
+                return ((height == key.height) && (width == key.width) && (config == key.config));
+            
+            }
+            
+            return false;
+        
+        }
+        
+        @Override
+        public int hashCode() {
+        
+            int hash = 17;
+            hash = ((hash * 31) + width);
+            hash = ((hash * 31) + height);
+            hash = ((hash * 31) + config.hashCode());
+            
+            return hash;
+        
+        }
+        
+        void set(int width, int height, Bitmap.Config config) {
+        
+            this.config = config;
+            this.height = height;
+            this.width = width;
+        
+        }
+    
+    }
+
+}
\ No newline at end of file
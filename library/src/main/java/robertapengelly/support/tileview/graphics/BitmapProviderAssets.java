@@ -5,6 +5,7 @@ import  android.content.res.AssetManager;
 import  android.graphics.Bitmap;
 import  android.graphics.BitmapFactory;
 
+import  java.io.IOException;
 import  java.io.InputStream;
 import  java.util.Locale;
 
@@ -17,18 +18,38 @@ import  robertapengelly.support.tileview.tile.Tile;
  * Feel free to use your own implementation here, where you might implement a favorite library like
  * Picasso, or add your own disk-caching scheme, etc.
  */
-public class BitmapProviderAssets implements BitmapProvider {
+public class BitmapProviderAssets implements PooledBitmapProvider, SampledBitmapProvider {
 
-    private static final BitmapFactory.Options OPTIONS = new BitmapFactory.Options();
+    private BitmapPool mBitmapPool;
     
-    static { OPTIONS.inPreferredConfig = Bitmap.Config.RGB_565; }
+    private Bitmap decode(AssetManager manager, String fileName, BitmapFactory.Options options) throws IOException {
+    
+        InputStream input = manager.open(fileName);
+        
+        try {
+            return BitmapFactory.decodeStream(input, null, options);
+        } finally {
+            input.close();
+        }
+    
+    }
     
     @Override
     public Bitmap getBitmap(Tile tile, Context context) {
+        return getBitmap(tile, context, null);
+    }
+    
+    @Override
+    public Bitmap getBitmap(Tile tile, Context context, CancellationToken cancellationToken) {
+        return getBitmap(tile, context, 1, cancellationToken);
+    }
+    
+    @Override
+    public Bitmap getBitmap(Tile tile, Context context, int sampleSize, CancellationToken cancellationToken) {
     
         Object data = tile.getData();
         
-        if (!(data instanceof String))
+        if (!(data instanceof String) || ((cancellationToken != null) && cancellationToken.isCancelled()))
             return null;
         
         String unformattedFileName = (String) data;
@@ -36,12 +57,41 @@ public class BitmapProviderAssets implements BitmapProvider {
         
         AssetManager manager = context.getAssets();
         
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = tile.getDetailLevel().getBitmapConfig();
+        options.inSampleSize = sampleSize;
+        
+        BitmapPool bitmapPool = mBitmapPool;
+        
+        if (bitmapPool != null)
+            bitmapPool.prepareOptions(options, (int) Math.ceil((float) tile.getWidth() / sampleSize),
+                (int) Math.ceil((float) tile.getHeight() / sampleSize));
+        
+        // a cancelled tile aborts the decode part-way, which then returns null
+        if (cancellationToken != null)
+            cancellationToken.cancelDecodeOnCancel(options);
+        
         try {
+            return decode(manager, formattedFileName, options);
+        } catch (IllegalArgumentException ex) {
         
-            InputStream input = manager.open(formattedFileName);
+            Bitmap unused = options.inBitmap;
+            
+            if (unused == null)
+                return null;
             
-            if (input != null)
-                return BitmapFactory.decodeStream(input, null, OPTIONS);
+            // the pooled bitmap didn't fit the encoded image (e.g., a partial tile along an edge), so give it
+            // back and decode into a fresh bitmap instead
+            options.inBitmap = null;
+            
+            if (!bitmapPool.put(unused))
+                unused.recycle();
+            
+            try {
+                return decode(manager, formattedFileName, options);
+            } catch (Exception e) {
+                // this is probably an IOException, meaning the file can't be found
+            }
         
         } catch (Exception ex) {
             // this is probably an IOException, meaning the file can't be found
@@ -50,5 +100,10 @@ public class BitmapProviderAssets implements BitmapProvider {
         return null;
     
     }
+    
+    @Override
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+    }
 
 }
\ No newline at end of file
@@ -0,0 +1,349 @@
+package robertapengelly.support.tileview.graphics;
+
+import  android.annotation.TargetApi;
+import  android.content.Context;
+import  android.graphics.Bitmap;
+import  android.graphics.BitmapFactory;
+import  android.graphics.BitmapRegionDecoder;
+import  android.graphics.Rect;
+import  android.os.Build;
+
+import  java.io.File;
+import  java.io.IOException;
+import  java.io.InputStream;
+import  java.util.LinkedList;
+
+import  robertapengelly.support.tileview.detail.DetailLevel;
+import  robertapengelly.support.tileview.tile.Tile;
+
+/**
+ * A BitmapProvider that cuts tiles out of a single large image on demand using BitmapRegionDecoder, so
+ * detail levels do not need pre-sliced tile sets.  The image is expected to be the size passed to
+ * TileView.setSize; every detail level reads from it, and the data passed for each level is ignored.
+ *
+ * Lower detail levels, and tiles drawn at a fraction of their size, are decoded with the largest
+ * power-of-two inSampleSize their scale allows, so they only read as many pixels as they need.
+ *
+ * A BitmapRegionDecoder serializes its own decodes, so a small pool of decoders (one per processor at
+ * most) is kept to let the render threads work in parallel.
+ *
+ * BitmapRegionDecoder is available from Gingerbread MR1; on older devices no tiles are produced.
+ */
+@TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+public class BitmapProviderRegionDecoder implements PooledBitmapProvider, SampledBitmapProvider,
+    TrimmableBitmapProvider {
+
+    private static final int DEFAULT_MAXIMUM_DECODERS = Runtime.getRuntime().availableProcessors();
+    
+    private int mDecoderCount, mMaxDecoders = DEFAULT_MAXIMUM_DECODERS;
+    
+    private Bitmap.Config mConfig;
+    private BitmapPool mBitmapPool;
+    private File mFile;
+    private String mAssetName;
+    
+    private final LinkedList<BitmapRegionDecoder> mIdleDecoders = new LinkedList<>();
+    
+    /** @param file The image file to decode tiles from. */
+    public BitmapProviderRegionDecoder(File file) {
+        mFile = file;
+    }
+    
+    /** @param assetName The name of the asset to decode tiles from. */
+    public BitmapProviderRegionDecoder(String assetName) {
+        mAssetName = assetName;
+    }
+    
+    private BitmapRegionDecoder acquireDecoder(Context context) throws InterruptedException, IOException {
+    
+        synchronized (mIdleDecoders) {
+        
+            while (mIdleDecoders.isEmpty() && (mDecoderCount >= mMaxDecoders))
+                mIdleDecoders.wait();
+            
+            if (!mIdleDecoders.isEmpty())
+                return mIdleDecoders.removeFirst();
+            
+            ++mDecoderCount;
+        
+        }
+        
+        try {
+        
+            if (mFile != null)
+                return BitmapRegionDecoder.newInstance(mFile.getPath(), false);
+            
+            InputStream input = context.getAssets().open(mAssetName);
+            
+            try {
+                return BitmapRegionDecoder.newInstance(input, false);
+            } finally {
+                input.close();
+            }
+        
+        } catch (IOException ex) {
+        
+            synchronized (mIdleDecoders) {
+            
+                --mDecoderCount;
+                mIdleDecoders.notify();
+            
+            }
+            
+            throw ex;
+        
+        }
+    
+    }
+    
+    /**
+     * Releases the decoders that are not currently in use.  Decoders are opened again as needed, so this is
+     * safe to call at any time, e.g., from TileView.destroy or when memory is low.
+     */
+    public void close() {
+    
+        synchronized (mIdleDecoders) {
+        
+            for (BitmapRegionDecoder decoder : mIdleDecoders)
+                decoder.recycle();
+            
+            mDecoderCount -= mIdleDecoders.size();
+            mIdleDecoders.clear();
+            
+            mIdleDecoders.notifyAll();
+        
+        }
+    
+    }
+    
+    private Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect region, BitmapFactory.Options options) {
+    
+        try {
+            return decoder.decodeRegion(region, options);
+        } catch (IllegalArgumentException ex) {
+        
+            Bitmap unused = options.inBitmap;
+            
+            if (unused == null)
+                return null;
+            
+            // the pooled bitmap didn't fit the region, so give it back and decode into a fresh bitmap instead
+            options.inBitmap = null;
+            
+            if (!mBitmapPool.put(unused))
+                unused.recycle();
+            
+            return decoder.decodeRegion(region, options);
+        
+        }
+    
+    }
+    
+    @Override
+    public Bitmap getBitmap(Tile tile, Context context) {
+        return getBitmap(tile, context, null);
+    }
+    
+    @Override
+    public Bitmap getBitmap(Tile tile, Context context, CancellationToken cancellationToken) {
+        return getBitmap(tile, context, 1, cancellationToken);
+    }
+    
+    @Override
+    public Bitmap getBitmap(Tile tile, Context context, int sampleSize, CancellationToken cancellationToken) {
+    
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1)
+            return null;
+        
+        if (isCancelled(cancellationToken))
+            return null;
+        
+        BitmapRegionDecoder decoder;
+        
+        try {
+            decoder = acquireDecoder(context);
+        } catch (InterruptedException ex) {
+        
+            // the tile was cancelled while waiting for a decoder
+            Thread.currentThread().interrupt();
+            return null;
+        
+        } catch (IOException ex) {
+            // this is probably an IOException, meaning the file can't be found
+            return null;
+        }
+        
+        try {
+        
+            // waiting for a decoder may have taken a while
+            if (isCancelled(cancellationToken))
+                return null;
+            
+            return getBitmap(tile, decoder, sampleSize, cancellationToken);
+        
+        } finally {
+            releaseDecoder(decoder);
+        }
+    
+    }
+    
+    private Bitmap getBitmap(Tile tile, BitmapRegionDecoder decoder, int tileSampleSize,
+        CancellationToken cancellationToken) {
+    
+        DetailLevel detailLevel = tile.getDetailLevel();
+        float scale = detailLevel.getScale();
+        
+        int tileHeight = detailLevel.getTileHeight();
+        int tileWidth = detailLevel.getTileWidth();
+        
+        int left = (tile.getColumn() * tileWidth);
+        int top = (tile.getRow() * tileHeight);
+        
+        // tiles along the right and bottom edges are cut short by the edge of the image
+        int bottom = Math.min((top + tileHeight), (int) Math.ceil(decoder.getHeight() * scale));
+        int right = Math.min((left + tileWidth), (int) Math.ceil(decoder.getWidth() * scale));
+        
+        if ((right <= left) || (bottom <= top))
+            return null;
+        
+        // the tile is in pixels of the detail level, map it back onto the source image
+        Rect region = new Rect((int) (left / scale), (int) (top / scale),
+            Math.min(decoder.getWidth(), (int) Math.ceil(right / scale)),
+            Math.min(decoder.getHeight(), (int) Math.ceil(bottom / scale)));
+        
+        // the region is read at the scale the tile is decoded at, which is reduced by the tile's sample size
+        int sampleSize = getSampleSize(scale / tileSampleSize);
+        
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = ((mConfig != null) ? mConfig : detailLevel.getBitmapConfig());
+        options.inSampleSize = sampleSize;
+        
+        BitmapPool bitmapPool = mBitmapPool;
+        
+        // BitmapRegionDecoder only honours inBitmap from Jelly Bean
+        if ((bitmapPool != null) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN))
+            bitmapPool.prepareOptions(options, (int) Math.ceil((float) region.width() / sampleSize),
+                (int) Math.ceil((float) region.height() / sampleSize));
+        
+        if (cancellationToken != null)
+            cancellationToken.cancelDecodeOnCancel(options);
+        
+        Bitmap bitmap = decodeRegion(decoder, region, options);
+        
+        if (bitmap == null)
+            return null;
+        
+        // skip the scaling pass if the tile was cancelled during the decode
+        if (isCancelled(cancellationToken)) {
+        
+            if ((bitmapPool == null) || !bitmapPool.put(bitmap))
+                bitmap.recycle();
+            
+            return null;
+        
+        }
+        
+        int height = (int) Math.ceil((float) (bottom - top) / tileSampleSize);
+        int width = (int) Math.ceil((float) (right - left) / tileSampleSize);
+        
+        // the scale of the level isn't a power of two, so the sampled region needs scaling the rest of the way
+        if ((bitmap.getWidth() != width) || (bitmap.getHeight() != height))
+            bitmap = replace(bitmap, Bitmap.createScaledBitmap(bitmap, width, height, true), bitmapPool);
+        
+        return bitmap;
+    
+    }
+    
+    public int getMaxDecoders() {
+    
+        synchronized (mIdleDecoders) {
+            return mMaxDecoders;
+        }
+    
+    }
+    
+    /**
+     * Returns the largest power of two that doesn't sample the image below the scale supplied.
+     *
+     * @param scale The scale of the detail level being decoded.
+     *
+     * @return The inSampleSize to decode with.
+     */
+    private static int getSampleSize(float scale) {
+    
+        int sampleSize = 1;
+        
+        while ((sampleSize * 2 * scale) <= 1)
+            sampleSize *= 2;
+        
+        return sampleSize;
+    
+    }
+    
+    private static boolean isCancelled(CancellationToken cancellationToken) {
+        return ((cancellationToken != null) && cancellationToken.isCancelled());
+    }
+    
+    private void releaseDecoder(BitmapRegionDecoder decoder) {
+    
+        synchronized (mIdleDecoders) {
+        
+            mIdleDecoders.addLast(decoder);
+            mIdleDecoders.notify();
+        
+        }
+    
+    }
+    
+    // returns the replacement for a bitmap, giving the bitmap up, or the bitmap itself if there is none
+    private static Bitmap replace(Bitmap bitmap, Bitmap replacement, BitmapPool bitmapPool) {
+    
+        if ((replacement == null) || (replacement == bitmap))
+            return bitmap;
+        
+        if ((bitmapPool == null) || !bitmapPool.put(bitmap))
+            bitmap.recycle();
+        
+        return replacement;
+    
+    }
+    
+    @Override
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+    }
+    
+    /**
+     * Sets the config tiles are decoded with, overriding the config policy of their DetailLevel, which is
+     * followed by default.
+     *
+     * @param config The Bitmap.Config to decode tiles with, or null to follow the DetailLevel.
+     */
+    public void setConfig(Bitmap.Config config) {
+        mConfig = config;
+    }
+    
+    /**
+     * Sets the maximum number of decoders kept open at once, which bounds how many tiles can be decoded
+     * in parallel.  Defaults to the number of processors.
+     *
+     * @param maxDecoders The maximum number of decoders kept open at once.
+     */
+    public void setMaxDecoders(int maxDecoders) {
+    
+        synchronized (mIdleDecoders) {
+        
+            mMaxDecoders = Math.max(1, maxDecoders);
+            mIdleDecoders.notifyAll();
+        
+        }
+    
+    }
+    
+    /** Releases the decoders that are not currently in use; see close. */
+    @Override
+    public void trimMemory() {
+        close();
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,15 @@
+package robertapengelly.support.tileview.graphics;
+
+import  android.content.Context;
+import  android.graphics.Bitmap;
+
+import  robertapengelly.support.tileview.tile.Tile;
+
+/**
+ * A BitmapProvider that can stop producing a tile once it is no longer wanted.  When the provider
+ * implements this interface the TileView calls the three argument getBitmap instead of the two argument
+ * one, so a panned-away tile frees its render thread rather than being decoded and thrown away.
+ */
+public interface CancellableBitmapProvider extends BitmapProvider {
+    Bitmap getBitmap(Tile tile, Context context, CancellationToken cancellationToken);
+}
\ No newline at end of file
@@ -0,0 +1,87 @@
+package robertapengelly.support.tileview.graphics;
+
+import  android.graphics.BitmapFactory;
+
+/**
+ * Tells a BitmapProvider that the tile it is producing is no longer wanted, e.g., because it was panned out
+ * of view.  Providers should check isCancelled between expensive steps and give up early; decodes through
+ * BitmapFactory can be aborted part-way with cancelDecodeOnCancel.
+ *
+ * A token is cancelled from the UI thread while the provider runs on a render thread.
+ */
+public class CancellationToken {
+
+    private volatile boolean mCancelled;
+    
+    private OnCancelListener mOnCancelListener;
+    
+    /** Cancels the token, notifying the listener if one is set.  Cancelling more than once has no effect. */
+    public void cancel() {
+    
+        OnCancelListener onCancelListener;
+        
+        synchronized (this) {
+        
+            if (mCancelled)
+                return;
+            
+            mCancelled = true;
+            onCancelListener = mOnCancelListener;
+        
+        }
+        
+        if (onCancelListener != null)
+            onCancelListener.onCancel();
+    
+    }
+    
+    /**
+     * Aborts a BitmapFactory decode using the options supplied when the token is cancelled; the decode then
+     * returns null.  Set up the options before starting the decode.
+     *
+     * @param options The options the decode is started with.
+     */
+    @SuppressWarnings("deprecation")
+    public void cancelDecodeOnCancel(final BitmapFactory.Options options) {
+    
+        setOnCancelListener(new OnCancelListener() {
+        
+            @Override
+            public void onCancel() {
+                options.requestCancelDecode();
+            }
+        
+        });
+    
+    }
+    
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+    
+    /**
+     * Sets a callback that is invoked, on the cancelling thread, when the token is cancelled.  If the token
+     * has been cancelled already the callback is invoked immediately.  Only one listener is kept.
+     *
+     * @param onCancelListener The listener, or null to remove it.
+     */
+    public void setOnCancelListener(OnCancelListener onCancelListener) {
+    
+        synchronized (this) {
+        
+            mOnCancelListener = onCancelListener;
+            
+            if (!mCancelled || (onCancelListener == null))
+                return;
+        
+        }
+        
+        onCancelListener.onCancel();
+    
+    }
+    
+    public interface OnCancelListener {
+        void onCancel();
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,10 @@
+package robertapengelly.support.tileview.graphics;
+
+/**
+ * A BitmapProvider that can reuse bitmaps released by the TileView when decoding.  The TileView passes its
+ * BitmapPool to the provider when the provider is set; implementations can then borrow bitmaps through
+ * BitmapPool.prepareOptions or BitmapPool.get.
+ */
+public interface PooledBitmapProvider extends BitmapProvider {
+    void setBitmapPool(BitmapPool bitmapPool);
+}
\ No newline at end of file
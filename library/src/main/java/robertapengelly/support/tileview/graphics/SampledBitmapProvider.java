@@ -0,0 +1,19 @@
+package robertapengelly.support.tileview.graphics;
+
+import  android.content.Context;
+import  android.graphics.Bitmap;
+
+import  robertapengelly.support.tileview.tile.Tile;
+
+/**
+ * A BitmapProvider that can decode a tile at a fraction of its full size.  When the TileView is zoomed out
+ * to half the scale of the current DetailLevel or less, its tiles are drawn at a fraction of their size;
+ * if the provider implements this interface they are decoded at that size too, rather than at full size
+ * and then shrunk as they are drawn.  A tile is decoded again in full once the TileView is zoomed back in.
+ *
+ * The bitmap returned should be the tile's full size divided by the sample size, rounded up, as with
+ * BitmapFactory.Options.inSampleSize.
+ */
+public interface SampledBitmapProvider extends CancellableBitmapProvider {
+    Bitmap getBitmap(Tile tile, Context context, int sampleSize, CancellationToken cancellationToken);
+}
\ No newline at end of file
@@ -0,0 +1,10 @@
+package robertapengelly.support.tileview.graphics;
+
+/**
+ * A BitmapProvider that keeps something of its own in memory (e.g., open decoders) it can let go of when the
+ * system is short of memory.  The TileView calls trimMemory when it empties its caches; the provider should
+ * rebuild whatever it released as it is needed again.
+ */
+public interface TrimmableBitmapProvider extends BitmapProvider {
+    void trimMemory();
+}
\ No newline at end of file
@@ -1,71 +1,72 @@
 package robertapengelly.support.tileview.tile;
 
-import  android.content.Context;
 import  android.graphics.Bitmap;
 import  android.graphics.Canvas;
 import  android.graphics.Paint;
 import  android.graphics.Rect;
-import  android.support.annotation.StringDef;
+import  android.support.annotation.IntDef;
 import  android.view.animation.AnimationUtils;
 
 import  java.lang.annotation.Retention;
 import  java.lang.annotation.RetentionPolicy;
 import  java.lang.ref.WeakReference;
+import  java.util.concurrent.atomic.AtomicInteger;
 
+import  robertapengelly.support.tileview.cache.TileDiskCache;
+import  robertapengelly.support.tileview.cache.TileMemoryCache;
 import  robertapengelly.support.tileview.detail.DetailLevel;
 import  robertapengelly.support.tileview.geom.FloatMathHelper;
+import  robertapengelly.support.tileview.graphics.BitmapPool;
 import  robertapengelly.support.tileview.graphics.BitmapProvider;
+import  robertapengelly.support.tileview.graphics.CancellableBitmapProvider;
+import  robertapengelly.support.tileview.graphics.CancellationToken;
+import  robertapengelly.support.tileview.graphics.SampledBitmapProvider;
 
 public class Tile {
 
     private static final int DEFAULT_TRANSITION_DURATION = 200;
+    private static final long NO_RENDER_TIMESTAMP = -1;
     
-    public static final String STATE_DECODED        = "state_decoded";
-    public static final String STATE_PENDING_DECODE = "state_pending_decode";
-    public static final String STATE_UNASSIGNED     = "state_unassigned";
+    // tiles are drawn on the UI thread one at a time, so they can share the paint that fades them in
+    private static final Paint TRANSITION_PAINT = new Paint();
+    
+    /** The largest row or column a tile can have, tile keys keep them to 28 bits; see getKey. */
+    public static final int MAX_CELL_INDEX = ((1 << 28) - 1);
+    
+    /** The largest key index a detail level can have, tile keys keep it to 8 bits; see getKey. */
+    public static final int MAX_LEVEL_INDEX = 0xFF;
+    
+    /*
+     * A tile moves from UNASSIGNED to PENDING_DECODE when it is executed, to DECODED when its bitmap is
+     * published and to RECYCLED when that bitmap is released; reset takes a pending tile back to UNASSIGNED.
+     * Every transition is a compare-and-set, so whichever thread wins a transition owns the bitmap it covers.
+     */
+    public static final int STATE_UNASSIGNED     = 0;
+    public static final int STATE_PENDING_DECODE = 1;
+    public static final int STATE_DECODED        = 2;
+    public static final int STATE_RECYCLED       = 3;
     
     private boolean mTransitionsEnabled;
     private float mDetailLevelScale, mProgress;
-    private int mBottom, mColumn, mHeight, mLeft, mRight, mRow, mTop, mWidth;
+    private int mBottom, mColumn, mHeight, mLeft, mRight, mRow, mSampleSize = 1, mTop, mWidth;
     private int mTransitionDuration = DEFAULT_TRANSITION_DURATION;
+    private long mKey, mRenderTimestamp = NO_RENDER_TIMESTAMP;
     
-    private Bitmap mBitmap;
+    private volatile Bitmap mBitmap;
     private DetailLevel mDetailLevel;
     private Object mData;
-    private Long mRenderTimestamp;
-    private Paint mPaint;
+    private Rect mRelativeRect = new Rect(), mScaledRect;
     
-    private Rect mBaseRect = new Rect(),
-                 mIntrinsicRect = new Rect(),
-                 mRelativeRect = new Rect(),
-                 mScaledRect = new Rect();
-    
-    private String mState = STATE_UNASSIGNED;
+    private final AtomicInteger mState = new AtomicInteger(STATE_UNASSIGNED);
     private WeakReference<TileRenderRunnable> mTileRenderRunnableWeakReference;
     
     /** @hide **/
-    @StringDef({STATE_DECODED, STATE_PENDING_DECODE, STATE_UNASSIGNED})
+    @IntDef({STATE_UNASSIGNED, STATE_PENDING_DECODE, STATE_DECODED, STATE_RECYCLED})
     @Retention(RetentionPolicy.SOURCE)
     public @interface State {}
     
     public Tile(int column, int row, int width, int height, Object data, DetailLevel detailLevel) {
-    
-        mColumn = column;
-        mData = data;
-        mDetailLevel = detailLevel;
-        mDetailLevelScale = mDetailLevel.getScale();
-        mHeight = height;
-        mRow = row;
-        mWidth = width;
-        
-        mLeft = (column * width);
-        mTop = (row * height);
-        
-        mBottom = (mTop + height);
-        mRight = (mLeft + width);
-        
-        updateRects();
-    
+        set(column, row, width, height, data, detailLevel);
     }
     
     public void computeProgress(){
@@ -73,7 +74,7 @@ public class Tile {
         if (!mTransitionsEnabled)
             return;
         
-        if (mRenderTimestamp == null) {
+        if (mRenderTimestamp == NO_RENDER_TIMESTAMP) {
         
             mProgress = 0;
             mRenderTimestamp = AnimationUtils.currentAnimationTimeMillis();
@@ -87,7 +88,7 @@ public class Tile {
         
         if (mProgress == 1f) {
         
-            mRenderTimestamp = null;
+            mRenderTimestamp = NO_RENDER_TIMESTAMP;
             mTransitionsEnabled = false;
         
         }
@@ -97,8 +98,11 @@ public class Tile {
     /** @param canvas The canvas the tile's bitmap should be drawn into. */
     public void draw(Canvas canvas) {
     
-        if ((mBitmap != null) && !mBitmap.isRecycled())
-            canvas.drawBitmap(mBitmap, mIntrinsicRect, mRelativeRect, getPaint());
+        Bitmap bitmap = mBitmap;
+        
+        // the tile is sized to its bitmap, so the whole bitmap is drawn
+        if ((bitmap != null) && !bitmap.isRecycled())
+            canvas.drawBitmap(bitmap, null, mRelativeRect, getPaint());
     
     }
     
@@ -122,14 +126,52 @@ public class Tile {
     
     public void execute(TileRenderPoolExecutor tileRenderPoolExecutor) {
     
-        if (!mState.equals(STATE_UNASSIGNED))
+        TileCanvasViewGroup tileCanvasViewGroup = tileRenderPoolExecutor.getTileCanvasViewGroup();
+        
+        // tiles in the viewport are decoded no larger than they are drawn, prefetched tiles are decoded in full
+        int sampleSize = ((tileCanvasViewGroup != null) ? tileCanvasViewGroup.getSampleSize(mDetailLevel) : 1);
+        execute(tileRenderPoolExecutor, TileRenderRunnable.PRIORITY_NORMAL, sampleSize);
+    
+    }
+    
+    void execute(TileRenderPoolExecutor tileRenderPoolExecutor, @TileRenderRunnable.Priority int priority) {
+        execute(tileRenderPoolExecutor, priority, 1);
+    }
+    
+    private void execute(TileRenderPoolExecutor tileRenderPoolExecutor, @TileRenderRunnable.Priority int priority,
+        int sampleSize) {
+    
+        int state = mState.get();
+        
+        // a tile is only decoded again once it has given up its bitmap
+        if ((state != STATE_UNASSIGNED) && (state != STATE_RECYCLED))
             return;
         
-        mState = STATE_PENDING_DECODE;
+        TileCanvasViewGroup tileCanvasViewGroup = tileRenderPoolExecutor.getTileCanvasViewGroup();
+        
+        // a bitmap decoded for this tile earlier may still be held by the cache, skip the worker if so
+        if ((tileCanvasViewGroup != null) && restoreBitmap(tileCanvasViewGroup.getTileMemoryCache())) {
+        
+            setTransitionDuration(tileCanvasViewGroup.getTransitionDuration());
+            setTransitionsEnabled(tileCanvasViewGroup.getTransitionsEnabled());
+            
+            if (tileCanvasViewGroup.addTileToCanvas(this))
+                tileCanvasViewGroup.invalidateTiles(mRelativeRect);
+            
+            return;
+        
+        }
+        
+        if (!mState.compareAndSet(state, STATE_PENDING_DECODE))
+            return;
+        
+        mSampleSize = sampleSize;
         
         TileRenderRunnable runnable = new TileRenderRunnable();
         mTileRenderRunnableWeakReference = new WeakReference<>(runnable);
         
+        runnable.setPriorityClass(priority);
+        runnable.setSampleSize(sampleSize);
         runnable.setTile(this);
         runnable.setTileRenderPoolExecutor(tileRenderPoolExecutor);
         
@@ -137,25 +179,102 @@ public class Tile {
     
     }
     
-    void generateBitmap(Context context, BitmapProvider provider) {
+    /**
+     * Produces the tile's bitmap for the TileCanvasViewGroup supplied.  If an equal tile is already being
+     * decoded the result of that decode is shared; otherwise the tile is read from the disk cache if
+     * possible, and from the BitmapProvider if not, in which case the result is written to the disk cache.
+     * The tile itself is left alone; the bitmap is published by setBitmap on the UI thread.
+     *
+     * Tiles decoded at a reduced size neither share decodes nor are written to the disk cache, both of which
+     * only hold tiles in full.
+     *
+     * @param tileCanvasViewGroup The TileCanvasViewGroup the tile is decoded for.
+     * @param sampleSize          The factor the tile is decoded smaller than its full size by.
+     * @param cancellationToken   The token that tells the provider the tile is no longer wanted.
+     *
+     * @return The decoded bitmap, which the caller owns, or null if the tile couldn't be produced.
+     *
+     * @throws InterruptedException If the tile was cancelled while waiting for an equal tile's decode.
+     */
+    Bitmap generateBitmap(TileCanvasViewGroup tileCanvasViewGroup, int sampleSize,
+        CancellationToken cancellationToken) throws InterruptedException {
+    
+        TileDecodeRegistry tileDecodeRegistry = tileCanvasViewGroup.getTileDecodeRegistry();
+        
+        if (sampleSize != 1)
+            tileDecodeRegistry = null;
+        
+        TileDecodeRegistry.Flight flight = ((tileDecodeRegistry != null) ? tileDecodeRegistry.join(this) : null);
+        
+        if (flight != null) {
+        
+            Bitmap bitmap = flight.await();
+            
+            if (bitmap != null)
+                return bitmap;
+        
+        }
+        
+        Bitmap bitmap = null;
+        
+        try {
+            bitmap = decode(tileCanvasViewGroup, sampleSize, cancellationToken);
+        } finally {
+        
+            // only the request that registered the decode completes it
+            if ((flight == null) && (tileDecodeRegistry != null)
+                && tileDecodeRegistry.complete(this, bitmap, isCancelled()))
+                bitmap = null;
+        
+        }
+        
+        return bitmap;
+    
+    }
+    
+    private Bitmap decode(TileCanvasViewGroup tileCanvasViewGroup, int sampleSize,
+        CancellationToken cancellationToken) {
     
-        if (mBitmap != null)
-            return;
+        TileDiskCache tileDiskCache = tileCanvasViewGroup.getTileDiskCache();
         
-        mBitmap = provider.getBitmap(this, context);
-        mHeight = mBitmap.getHeight();
-        mWidth = mBitmap.getWidth();
+        if (tileDiskCache != null) {
         
-        mBottom = (mTop + mHeight);
-        mRight = (mLeft + mWidth);
+            Bitmap bitmap = tileDiskCache.get(this, tileCanvasViewGroup.getBitmapPool(), sampleSize,
+                cancellationToken);
+            
+            if ((bitmap != null) || cancellationToken.isCancelled())
+                return bitmap;
         
-        updateRects();
-        mState = STATE_DECODED;
+        }
+        
+        BitmapProvider provider = tileCanvasViewGroup.getBitmapProvider();
+        Bitmap bitmap;
+        
+        // only a SampledBitmapProvider is asked for a reduced size, see TileCanvasViewGroup.getSampleSize
+        if (provider instanceof SampledBitmapProvider)
+            bitmap = ((SampledBitmapProvider) provider).getBitmap(this, tileCanvasViewGroup.getContext(), sampleSize,
+                cancellationToken);
+        else if (provider instanceof CancellableBitmapProvider)
+            bitmap = ((CancellableBitmapProvider) provider).getBitmap(this, tileCanvasViewGroup.getContext(),
+                cancellationToken);
+        else
+            bitmap = provider.getBitmap(this, tileCanvasViewGroup.getContext());
+        
+        // the tile is encoded on the disk cache's writer thread, it is drawn without waiting for that
+        if ((tileDiskCache != null) && (sampleSize == 1) && !cancellationToken.isCancelled())
+            tileDiskCache.offer(this, bitmap);
+        
+        return bitmap;
     
     }
     
+    /**
+     * Returns the tile's bounds in pixels of its detail level.
+     *
+     * @return A new Rect holding the tile's bounds.
+     */
     public Rect getBaseRect() {
-        return mBaseRect;
+        return new Rect(mLeft, mTop, mRight, mBottom);
     }
     
     public Bitmap getBitmap() {
@@ -182,20 +301,49 @@ public class Tile {
         return (mTransitionsEnabled && (mProgress < 1f));
     }
     
+    /**
+     * Returns a key that identifies the tile by detail level, row and column, consistent with equals.
+     *
+     * @return The tile's key.
+     */
+    public long getKey() {
+        return mKey;
+    }
+    
+    /**
+     * Packs a detail level's key index, a column and a row into a tile key.  The key index stands in for the
+     * detail level (levels of the same scale share one, as they do in equals) and takes 8 bits, leaving 28
+     * bits each for the row and column.  DetailLevelManager refuses detail levels with more rows or columns
+     * than that, so the key is never computed for them.
+     *
+     * @param levelIndex The key index of the tile's detail level, see DetailLevel.getKeyIndex.
+     * @param column     The tile's column.
+     * @param row        The tile's row.
+     *
+     * @return The tile key.
+     */
+    public static long getKey(int levelIndex, int column, int row) {
+        return (((long) (levelIndex & MAX_LEVEL_INDEX) << 56) | ((long) (row & MAX_CELL_INDEX) << 28)
+            | (column & MAX_CELL_INDEX));
+    }
+    
     public int getLeft() {
         return mLeft;
     }
     
+    /**
+     * Returns the paint the tile is drawn with while it fades in, or null once it is fully drawn.  The paint
+     * is shared by every tile, so use it before asking another tile for its paint.
+     *
+     * @return The paint to draw the tile with, or null.
+     */
     public Paint getPaint() {
     
         if (!mTransitionsEnabled)
-            return (mPaint = null);
+            return null;
         
-        if (mPaint == null)
-            mPaint = new Paint();
-        
-        mPaint.setAlpha((int) (255 * mProgress));
-        return mPaint;
+        TRANSITION_PAINT.setAlpha((int) (255 * mProgress));
+        return TRANSITION_PAINT;
     
     }
     
@@ -213,6 +361,9 @@ public class Tile {
     
     public Rect getScaledRect(float scale) {
     
+        if (mScaledRect == null)
+            mScaledRect = new Rect();
+        
         mScaledRect.set((int) (mRelativeRect.left * scale), (int) (mRelativeRect.top * scale),
             (int) (mRelativeRect.right * scale), (int) (mRelativeRect.bottom * scale));
         
@@ -220,8 +371,17 @@ public class Tile {
     
     }
     
-    public @State String getState() {
-        return mState;
+    /**
+     * Returns the factor the tile's bitmap was, or is being, decoded smaller than its full size by.
+     *
+     * @return The sample size, 1 for a tile decoded in full.
+     */
+    public int getSampleSize() {
+        return mSampleSize;
+    }
+    
+    public @State int getState() {
+        return mState.get();
     }
     
     public int getTop() {
@@ -248,10 +408,80 @@ public class Tile {
     
     }
     
+    /**
+     * Returns true if nothing can still be using the tile, so TilePool may reuse it: the tile has given up
+     * its bitmap and no render thread is working on it.
+     *
+     * @return True if the tile may be reused.
+     */
+    boolean isRecyclable() {
+    
+        if ((mState.get() == STATE_PENDING_DECODE) || (mBitmap != null))
+            return false;
+        
+        if (mTileRenderRunnableWeakReference == null)
+            return true;
+        
+        TileRenderRunnable runnable = mTileRenderRunnableWeakReference.get();
+        return ((runnable == null) || !runnable.isRunning());
+    
+    }
+    
+    private boolean isCancelled() {
+    
+        if (mTileRenderRunnableWeakReference == null)
+            return false;
+        
+        TileRenderRunnable runnable = mTileRenderRunnableWeakReference.get();
+        return ((runnable == null) || runnable.isCancelled());
+    
+    }
+    
     void reset() {
+        reset(null, null);
+    }
+    
+    /**
+     * Hands the tile's bitmap over to another tile for the same cell, leaving this one to be decoded again,
+     * e.g., in full while the other keeps drawing the reduced size bitmap until then.
+     *
+     * @param tile A tile for the same cell that hasn't been decoded.
+     *
+     * @return True if the other tile took the bitmap.
+     */
+    boolean moveBitmap(Tile tile) {
     
-        if (mState.equals(STATE_PENDING_DECODE)) {
+        if (!mState.compareAndSet(STATE_DECODED, STATE_RECYCLED))
+            return false;
         
+        Bitmap bitmap = mBitmap;
+        mBitmap = null;
+        
+        mDetailLevel.onBitmapDetached(bitmap);
+        
+        if (tile.setBitmap(tile.getState(), bitmap, mSampleSize))
+            return true;
+        
+        releaseBitmap(bitmap, mSampleSize, null, null);
+        return false;
+    
+    }
+    
+    /**
+     * Cancels any pending decode and releases the bitmap.  If a cache is supplied the bitmap is handed over
+     * to it rather than recycled, so the tile can be restored without decoding again; failing that, a pool
+     * may take it so the allocation can be reused by a later decode.
+     *
+     * @param tileMemoryCache The cache that should receive the bitmap, or null.
+     * @param bitmapPool      The pool that should receive the bitmap if the cache does not, or null.
+     */
+    void reset(TileMemoryCache tileMemoryCache, BitmapPool bitmapPool) {
+    
+        mRenderTimestamp = NO_RENDER_TIMESTAMP;
+        
+        if (mState.compareAndSet(STATE_PENDING_DECODE, STATE_UNASSIGNED)) {
+        
+            // the runnable's bitmap is released when it arrives, as it no longer matches a pending tile
             if (mTileRenderRunnableWeakReference != null) {
             
                 TileRenderRunnable runnable = mTileRenderRunnableWeakReference.get();
@@ -260,21 +490,165 @@ public class Tile {
                     runnable.cancel(true);
             
             }
+            
+            return;
         
         }
         
-        mRenderTimestamp = null;
-        mState = STATE_UNASSIGNED;
+        if (!mState.compareAndSet(STATE_DECODED, STATE_RECYCLED))
+            return;
+        
+        Bitmap bitmap = mBitmap;
+        mBitmap = null;
+        
+        mDetailLevel.onBitmapDetached(bitmap);
+        releaseBitmap(bitmap, mSampleSize, tileMemoryCache, bitmapPool);
+    
+    }
+    
+    /**
+     * Gives the tile the bitmap the cache holds for it, if any, without going through a render thread.
+     *
+     * @param tileMemoryCache The cache to restore the bitmap from, or null.
+     *
+     * @return True if the tile was restored from the cache.
+     */
+    boolean restoreBitmap(TileMemoryCache tileMemoryCache) {
+    
+        int state = mState.get();
+        
+        if ((tileMemoryCache == null) || ((state != STATE_UNASSIGNED) && (state != STATE_RECYCLED)))
+            return false;
+        
+        Bitmap bitmap = tileMemoryCache.take(this);
+        
+        if (bitmap == null)
+            return false;
+        
+        // the cache only holds tiles decoded in full
+        if (setBitmap(state, bitmap, 1))
+            return true;
         
-        if ((mBitmap != null) && !mBitmap.isRecycled())
-            mBitmap.recycle();
+        releaseBitmap(bitmap, 1, tileMemoryCache, null);
+        return false;
+    
+    }
+    
+    /**
+     * Hands a bitmap decoded for this tile to the cache, failing that to the pool, and recycles it if neither
+     * takes it.  Bitmaps decoded at a reduced size skip the cache, so a tile restored from it is always full
+     * size.
+     *
+     * @param bitmap          The bitmap to release, or null.
+     * @param sampleSize      The factor the bitmap was decoded smaller than the tile's full size by.
+     * @param tileMemoryCache The cache that should receive the bitmap, or null.
+     * @param bitmapPool      The pool that should receive the bitmap if the cache does not, or null.
+     */
+    void releaseBitmap(Bitmap bitmap, int sampleSize, TileMemoryCache tileMemoryCache, BitmapPool bitmapPool) {
+    
+        if (bitmap == null)
+            return;
         
+        boolean released = (((sampleSize == 1) && (tileMemoryCache != null) && tileMemoryCache.put(this, bitmap))
+            || ((bitmapPool != null) && bitmapPool.put(bitmap)));
+        
+        if (!released && !bitmap.isRecycled())
+            bitmap.recycle();
+    
+    }
+    
+    /**
+     * (Re)initializes the tile for the cell supplied, in the STATE_UNASSIGNED state.  Used by TilePool to
+     * reuse tiles that left the viewport.
+     */
+    void set(int column, int row, int width, int height, Object data, DetailLevel detailLevel) {
+    
         mBitmap = null;
+        mProgress = 0;
+        mRenderTimestamp = NO_RENDER_TIMESTAMP;
+        mSampleSize = 1;
+        mTileRenderRunnableWeakReference = null;
+        mTransitionDuration = DEFAULT_TRANSITION_DURATION;
+        mTransitionsEnabled = false;
+        
+        mState.set(STATE_UNASSIGNED);
+        
+        mColumn = column;
+        mData = data;
+        mDetailLevel = detailLevel;
+        mDetailLevelScale = mDetailLevel.getScale();
+        mHeight = height;
+        mRow = row;
+        mWidth = width;
+        
+        mLeft = (column * width);
+        mTop = (row * height);
+        
+        mBottom = (mTop + height);
+        mRight = (mLeft + width);
+        
+        mKey = getKey(mDetailLevel.getKeyIndex(), column, row);
+        updateRects();
     
     }
     
-    public void setState(@State String state) {
-        mState = state;
+    private boolean setBitmap(int expectedState, Bitmap bitmap, int sampleSize) {
+    
+        // never overwrite a bitmap the tile already owns
+        if (mState.get() != expectedState)
+            return false;
+        
+        // the bitmap is written before the state, so a thread that sees STATE_DECODED sees the bitmap too
+        mBitmap = bitmap;
+        mSampleSize = sampleSize;
+        
+        // a reduced size bitmap still covers the tile's full area, it is stretched when drawn
+        mHeight = (bitmap.getHeight() * sampleSize);
+        mWidth = (bitmap.getWidth() * sampleSize);
+        
+        mBottom = (mTop + mHeight);
+        mRight = (mLeft + mWidth);
+        
+        updateRects();
+        
+        if (mState.compareAndSet(expectedState, STATE_DECODED)) {
+        
+            mDetailLevel.onBitmapAttached(bitmap);
+            return true;
+        
+        }
+        
+        if (mBitmap == bitmap)
+            mBitmap = null;
+        
+        return false;
+    
+    }
+    
+    /**
+     * Publishes the result of a runnable's decode.  The result is only taken if the tile is still waiting
+     * for that runnable; a tile that was reset, or executed again, since leaves the bitmap with the caller.
+     *
+     * @param runnable The runnable that decoded the bitmap.
+     * @param bitmap   The decoded bitmap, or null if the decode failed, in which case the tile may be
+     *                 executed again.
+     *
+     * @return True if the tile took the bitmap.
+     */
+    boolean setBitmap(TileRenderRunnable runnable, Bitmap bitmap) {
+    
+        if ((mTileRenderRunnableWeakReference == null) || (mTileRenderRunnableWeakReference.get() != runnable))
+            return false;
+        
+        if (bitmap == null) {
+        
+            mState.compareAndSet(STATE_PENDING_DECODE, STATE_UNASSIGNED);
+            return false;
+        
+        }
+        
+        return setBitmap(STATE_PENDING_DECODE, bitmap, runnable.getSampleSize());
+    
     }
     
     public void setTransitionDuration(int transitionDuration) {
@@ -295,14 +669,8 @@ public class Tile {
     }
     
     private void updateRects() {
-    
-        mBaseRect.set(mLeft, mTop, mRight, mBottom);
-        mIntrinsicRect.set(0, 0, mWidth, mHeight);
         mRelativeRect.set(FloatMathHelper.unscale(mLeft, mDetailLevelScale), FloatMathHelper.unscale(mTop, mDetailLevelScale),
             FloatMathHelper.unscale(mRight, mDetailLevelScale), FloatMathHelper.unscale(mBottom, mDetailLevelScale));
-        
-        mScaledRect.set(mRelativeRect);
-    
     }
 
 }
\ No newline at end of file
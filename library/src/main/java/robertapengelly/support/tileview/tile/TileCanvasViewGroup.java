@@ -1,22 +1,32 @@
 package robertapengelly.support.tileview.tile;
 
 import  android.content.Context;
+import  android.graphics.Bitmap;
 import  android.graphics.Canvas;
 import  android.graphics.Rect;
 import  android.graphics.Region;
 import  android.os.Handler;
 import  android.os.Looper;
 import  android.os.Message;
+import  android.support.annotation.IntDef;
 import  android.view.ViewGroup;
 
+import  java.lang.annotation.Retention;
+import  java.lang.annotation.RetentionPolicy;
 import  java.lang.ref.WeakReference;
-import  java.util.HashSet;
-import  java.util.Iterator;
-import  java.util.Set;
+import  java.util.ArrayList;
 
+import  robertapengelly.support.tileview.cache.TileDiskCache;
+import  robertapengelly.support.tileview.cache.TileMemoryBudget;
+import  robertapengelly.support.tileview.cache.TileMemoryCache;
 import  robertapengelly.support.tileview.detail.DetailLevel;
+import  robertapengelly.support.tileview.detail.DetailLevelManager;
+import  robertapengelly.support.tileview.graphics.BitmapPool;
 import  robertapengelly.support.tileview.graphics.BitmapProvider;
 import  robertapengelly.support.tileview.graphics.BitmapProviderAssets;
+import  robertapengelly.support.tileview.graphics.PooledBitmapProvider;
+import  robertapengelly.support.tileview.graphics.SampledBitmapProvider;
+import  robertapengelly.support.tileview.graphics.TrimmableBitmapProvider;
 
 /**
  * This class extends ViewGroup for legacy reasons, and may be changed to extend View at
@@ -24,13 +34,40 @@ import  robertapengelly.support.tileview.graphics.BitmapProviderAssets;
  */
 public class TileCanvasViewGroup extends ViewGroup {
 
+    private static final int DEFAULT_PREVIOUS_TILE_MEMORY_FRACTION = 16;
     private static final int DEFAULT_TRANSITION_DURATION = 200;
     private static final int RENDER_FLAG = 1;
     
     public static final int DEFAULT_RENDER_BUFFER = 250;
     public static final int FAST_RENDER_BUFFER = 15;
     
-    private boolean mHasInvalidatedOnCleanOnce,
+    /** The default number of tiles of previous DetailLevels kept drawn while the current level decodes. */
+    public static final int DEFAULT_MAX_PREVIOUS_TILE_COUNT = 128;
+    
+    /** Prefetched tiles are decoded before the tiles currently in the viewport. */
+    public static final int PREFETCH_PRIORITY_HIGH = TileRenderRunnable.PRIORITY_HIGH;
+    
+    /** Prefetched tiles are decoded once the tiles currently in the viewport are done. */
+    public static final int PREFETCH_PRIORITY_LOW = TileRenderRunnable.PRIORITY_LOW;
+    
+    /** No tile memory is being shed. */
+    public static final int TRIM_STAGE_NONE = 0;
+    
+    /** Prefetching stops, and the tiles of the previous DetailLevel and fallback tiles are released. */
+    public static final int TRIM_STAGE_PREFETCH = 1;
+    
+    /** As TRIM_STAGE_PREFETCH, and the tiles in the viewport padding are released too. */
+    public static final int TRIM_STAGE_PADDING = 2;
+    
+    /** As TRIM_STAGE_PADDING, and the memory cache, the bitmap pool and the BitmapProvider are emptied too. */
+    public static final int TRIM_STAGE_CACHES = 3;
+    
+    /** As TRIM_STAGE_CACHES, and the tiles in the viewport are released too; for when they can't be seen. */
+    public static final int TRIM_STAGE_ALL = 4;
+    
+    private boolean mFallbackEnabled = true,
+                    mHasInvalidatedOnCleanOnce,
+                    mHasRenderFocalPoint = false,
                     mIsRendering = false,
                     mRenderIsCancelled = false,
                     mRenderIsSuppressed = false,
@@ -38,11 +75,23 @@ public class TileCanvasViewGroup extends ViewGroup {
     
     private float mScale = 1;
     
-    private int mRenderBuffer = DEFAULT_RENDER_BUFFER,
-                mTransitionDuration = DEFAULT_TRANSITION_DURATION;
+    private int mMaxPreviousTileCount = DEFAULT_MAX_PREVIOUS_TILE_COUNT,
+                mRenderBuffer = DEFAULT_RENDER_BUFFER,
+                mRenderFocalPointX,
+                mRenderFocalPointY,
+                mReservedByteCount,
+                mSampleSize = 1,
+                mTransitionDuration = DEFAULT_TRANSITION_DURATION,
+                mTrimStage = TRIM_STAGE_NONE;
     
+    // by default the tiles of previous levels may hold a sixteenth of the memory available to the application
+    private int mMaxPreviousTileBytes = (int) Math.min(Integer.MAX_VALUE,
+        (Runtime.getRuntime().maxMemory() / DEFAULT_PREVIOUS_TILE_MEMORY_FRACTION));
+    
+    private BitmapPool mBitmapPool = new BitmapPool();
     private BitmapProvider mBitmapProvider;
-    private DetailLevel mDetailLevelToRender, mLastRenderedDetailLevel;
+    private DetailLevel mDetailLevelToRender, mLastComputedDetailLevel, mPrefetchDetailLevel;
+    private Rect mPrefetchCells = new Rect(), mPrefetchedCells = new Rect(), mResidentTilesRect = new Rect();
     private Region mDirtyRegion = new Region();
     
     // This runnable is required to run on UI thread
@@ -56,60 +105,175 @@ public class TileCanvasViewGroup extends ViewGroup {
             if (mTileRenderListener != null)
                 mTileRenderListener.onRenderComplete();
             
-            mLastRenderedDetailLevel = mDetailLevelToRender;
             requestRender();
         
         }
     
     };
     
-    private Set<Tile> mDecodedTilesInCurrentViewport = new HashSet<>(),
-                      mPreviouslyDrawnTiles = new HashSet<>(),
-                      mTilesInCurrentViewport = new HashSet<>();
+    private TileSet mDecodedTilesInCurrentViewport = new TileSet(),
+                    mFallbackTiles = new TileSet(),
+                    mPrefetchTiles = new TileSet(),
+                    mPreviouslyDrawnTiles = new TileSet(),
+                    mTilesInCurrentViewport = new TileSet(),
+                    mUnqueuedTiles = new TileSet();
+    
+    // the levels mPreviouslyDrawnTiles holds tiles of, oldest first
+    private ArrayList<DetailLevel> mPreviousDetailLevels = new ArrayList<>();
     
+    private TileDecodeRegistry mTileDecodeRegistry = new TileDecodeRegistry();
+    private TileDiskCache mTileDiskCache;
+    private TileMemoryBudget mTileMemoryBudget;
+    private TileMemoryCache mTileMemoryCache = new TileMemoryCache();
     private TileRenderListener mTileRenderListener;
     private TileRenderPoolExecutor mTileRenderPoolExecutor;
     private TileRenderThrottleHandler mTileRenderThrottleHandler;
     private TileRenderThrowableListener mTileRenderThrowableListener;
     
+    /** @hide **/
+    @IntDef({TRIM_STAGE_NONE, TRIM_STAGE_PREFETCH, TRIM_STAGE_PADDING, TRIM_STAGE_CACHES, TRIM_STAGE_ALL})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface TrimStage {}
+    
     public TileCanvasViewGroup(Context context) {
         super(context);
         setWillNotDraw(false);
         
+        mTileMemoryCache.setBitmapPool(mBitmapPool);
+        
+        mTileMemoryBudget = new TileMemoryBudget(context);
+        mTileMemoryBudget.setBitmapPool(mBitmapPool);
+        mTileMemoryBudget.setTileMemoryCache(mTileMemoryCache);
+        
         mTileRenderPoolExecutor = new TileRenderPoolExecutor();
         mTileRenderThrottleHandler = new TileRenderThrottleHandler(this);
     
     }
     
-    // this tile has been decoded by the time it gets passed here
-    void addTileToCanvas(final Tile tile) {
+    /**
+     * Covers a tile that has to be decoded with the tiles of the nearest coarser DetailLevel the memory cache
+     * holds, so the area shows a scaled up version of the image rather than nothing until the tile arrives.
+     * The tile fades in over them, and they go back to the cache once the tiles on top are fully drawn.
+     */
+    private void addFallbackTiles(Tile tile) {
     
-        if (mTilesInCurrentViewport.contains(tile))
-            invalidate();
+        // while memory is short the cache is left to hold what it can
+        if (!mFallbackEnabled || (mTileMemoryCache == null) || (mTrimStage != TRIM_STAGE_NONE))
+            return;
+        
+        DetailLevelManager manager = mDetailLevelToRender.getDetailLevelManager();
+        DetailLevel level = manager.getCoarserDetailLevel(tile.getDetailLevel());
+        
+        while ((level != null) && !addFallbackTiles(level, tile.getRelativeRect()))
+            level = manager.getCoarserDetailLevel(level);
     
     }
     
-    private void beginRenderTask() {
+    // returns true if every tile of the level under the rect is drawn, either as a fallback or as a previous tile
+    private boolean addFallbackTiles(DetailLevel level, Rect rect) {
     
-        // if visible columns and rows are same as previously computed, fast-fail
-        boolean changed = mDetailLevelToRender.computeCurrentState();
+        DetailLevelManager manager = level.getDetailLevelManager();
+        TilePool tilePool = level.getTilePool();
         
-        if (!changed && mDetailLevelToRender.equals(mLastRenderedDetailLevel))
-            return;
+        float scale = level.getScale();
+        int tileHeight = level.getTileHeight(), tileWidth = level.getTileWidth();
         
-        // determine tiles are mathematically within the current viewport; force re-computation
-        mDetailLevelToRender.computeVisibleTilesFromViewport();
+        int columnEnd = (int) Math.ceil(Math.min(rect.right, manager.getBaseWidth()) * scale / tileWidth);
+        int columnStart = (int) Math.floor(rect.left * scale / tileWidth);
+        
+        int rowEnd = (int) Math.ceil(Math.min(rect.bottom, manager.getBaseHeight()) * scale / tileHeight);
+        int rowStart = (int) Math.floor(rect.top * scale / tileHeight);
+        
+        boolean covered = true;
+        
+        for (int row = rowStart; row < rowEnd; ++row) {
+        
+            for (int column = columnStart; column < columnEnd; ++column) {
+            
+                long key = Tile.getKey(level.getKeyIndex(), column, row);
+                
+                if ((mFallbackTiles.getByKey(key) != null) || (mPreviouslyDrawnTiles.getByKey(key) != null))
+                    continue;
+                
+                Tile fallbackTile = tilePool.obtain(column, row, tileWidth, tileHeight, level.getData(), level);
+                
+                if (fallbackTile.restoreBitmap(mTileMemoryCache)) {
+                
+                    mFallbackTiles.add(fallbackTile);
+                    mResidentTilesRect.union(fallbackTile.getRelativeRect());
+                
+                } else {
+                
+                    tilePool.release(fallbackTile);
+                    covered = false;
+                
+                }
+            
+            }
+        
+        }
+        
+        return covered;
+    
+    }
+    
+    /**
+     * Takes a tile that has been decoded.  The caller invalidates the tile's area, which lets tiles decoded
+     * together be drawn in a single pass.
+     *
+     * @param tile The decoded tile.
+     *
+     * @return True if the tile's cell is in the current viewport and should be drawn.
+     */
+    boolean addTileToCanvas(Tile tile) {
+    
+        // the sets match tiles by cell, a prefetched tile may share its cell with another instance
+        Tile viewportTile = mTilesInCurrentViewport.getByKey(tile.getKey());
+        
+        if (viewportTile == tile)
+            return true;
+        
+        // the cell entered the viewport as another tile while this one was prefetched, that tile takes the
+        // bitmap rather than decoding it again
+        if ((viewportTile != null) && (viewportTile.getState() != Tile.STATE_DECODED)) {
+        
+            viewportTile.reset(mTileMemoryCache, mBitmapPool);
+            
+            if (tile.moveBitmap(viewportTile)) {
+            
+                mUnqueuedTiles.remove(viewportTile);
+                
+                viewportTile.setTransitionDuration(mTransitionDuration);
+                viewportTile.setTransitionsEnabled(mTransitionsEnabled);
+                
+                return true;
+            
+            }
+        
+        }
         
-        // get rid of anything outside, use previously computed intersections
-        cleanup();
+        // otherwise the bitmap goes to the cache, unless the tile is still drawn as part of a previous level
+        if (mPreviouslyDrawnTiles.getByKey(tile.getKey()) != tile)
+            tile.reset(mTileMemoryCache, mBitmapPool);
+        
+        return false;
+    
+    }
+    
+    private void beginRenderTask() {
+    
+        // usually done by requestRender already, but the viewport may have moved since
+        drawResidentTiles();
         
         // are there any new tiles the Executor isn't already aware of?
-        boolean wereTilesAdded = mTilesInCurrentViewport.addAll(mDetailLevelToRender
-            .getVisibleTilesFromLastViewportComputation());
+        if (mUnqueuedTiles.isEmpty())
+            return;
+        
+        // if so, start up a new batch, nearest to the focal point first; tiles restored from the cache are skipped
+        updateRenderFocalPoint();
+        mTileRenderPoolExecutor.queue(this, mTilesInCurrentViewport, mUnqueuedTiles);
         
-        // if so, start up a new batch
-        if (wereTilesAdded)
-            mTileRenderPoolExecutor.queue(this, mTilesInCurrentViewport);
+        mUnqueuedTiles.clear();
     
     }
     
@@ -120,20 +284,18 @@ public class TileCanvasViewGroup extends ViewGroup {
             return;
         
         // these tiles are mathematically within the current viewport, and should be already computed
-        Set<Tile> recentlyComputedVisibleTileSet = mDetailLevelToRender.getVisibleTilesFromLastViewportComputation();
+        TileSet recentlyComputedVisibleTileSet = mDetailLevelToRender.getVisibleTilesFromLastViewportComputation();
         
-        // use an iterator to avoid concurrent modification
-        Iterator<Tile> tilesInCurrentViewportIterator = mTilesInCurrentViewport.iterator();
+        // walk backwards, removing a tile moves the last one into its place
+        for (int i = (mTilesInCurrentViewport.size() - 1); i >= 0; --i) {
         
-        while (tilesInCurrentViewportIterator.hasNext()) {
-        
-            Tile tile = tilesInCurrentViewportIterator.next();
+            Tile tile = mTilesInCurrentViewport.get(i);
             
             // this tile was visible previously, but is no longer, destroy and de-list it
             if (!recentlyComputedVisibleTileSet.contains(tile)) {
             
-                tile.reset();
-                tilesInCurrentViewportIterator.remove();
+                mTilesInCurrentViewport.removeAt(i);
+                releaseTile(tile);
             
             }
         
@@ -151,37 +313,213 @@ public class TileCanvasViewGroup extends ViewGroup {
 
         if (mTileRenderPoolExecutor != null)
             mTileRenderPoolExecutor.cancel();
+        
+        // the tiles that were waiting are queued again once rendering resumes
+        mUnqueuedTiles.addAll(mTilesInCurrentViewport);
+    
+    }
+    
+    /** Abandons any prefetch work started with prefetch. */
+    public void cancelPrefetch() {
+    
+        mPrefetchDetailLevel = null;
+        mTileRenderPoolExecutor.cancelPrefetch();
+    
+    }
+    
+    /** Reverts tile decode ordering to radiate from the center of the viewport. */
+    public void clearRenderFocalPoint() {
+    
+        mHasRenderFocalPoint = false;
+        updateRenderFocalPoint();
     
     }
     
     /** Clears existing tiles and cancels any existing render tasks. */
     public void clear() {
     
-        cancelRender();
+        // the level still refers to the viewport's tiles and draws them again, so they keep out of the TilePool
+        releaseTilesInViewport();
+        
+        releaseFallbackTiles();
+        releasePreviousTiles();
         
-        mPreviouslyDrawnTiles.clear();
         mTilesInCurrentViewport.clear();
+        mUnqueuedTiles.clear();
+        
+        // the viewport's tiles have to be computed again
+        mLastComputedDetailLevel = null;
+        
+        if ((mTileMemoryBudget != null) && (mDetailLevelToRender != null))
+            reserveMemory();
         
         invalidate();
     
     }
     
+    /**
+     * Drops the tiles of the oldest previous levels until those left are within the count and byte caps.  If
+     * the tiles of the newest level alone exceed the caps, those farthest from the middle of the viewport go.
+     */
+    private void cullPreviousTiles() {
+    
+        int byteCount = getPreviousTileByteCount();
+        
+        while ((mPreviousDetailLevels.size() > 1) &&
+            ((mPreviouslyDrawnTiles.size() > mMaxPreviousTileCount) || (byteCount > mMaxPreviousTileBytes))) {
+            
+            releasePreviousTiles(mPreviousDetailLevels.get(0));
+            byteCount = getPreviousTileByteCount();
+        
+        }
+        
+        Rect viewport = getComputedViewport();
+        
+        while ((mPreviouslyDrawnTiles.size() > mMaxPreviousTileCount) || (byteCount > mMaxPreviousTileBytes)) {
+        
+            int index = 0;
+            
+            if (viewport != null) {
+            
+                float distance = -1;
+                
+                for (int i = 0; i < mPreviouslyDrawnTiles.size(); ++i) {
+                
+                    Rect rect = mPreviouslyDrawnTiles.get(i).getRelativeRect();
+                    
+                    float distanceX = (rect.centerX() - viewport.centerX());
+                    float distanceY = (rect.centerY() - viewport.centerY());
+                    
+                    float tileDistance = ((distanceX * distanceX) + (distanceY * distanceY));
+                    
+                    if (tileDistance > distance) {
+                    
+                        distance = tileDistance;
+                        index = i;
+                    
+                    }
+                
+                }
+            
+            }
+            
+            Tile tile = mPreviouslyDrawnTiles.removeAt(index);
+            byteCount -= getBitmapByteCount(tile);
+            
+            releasePreviousTile(tile);
+        
+        }
+        
+        if (mPreviouslyDrawnTiles.isEmpty())
+            mPreviousDetailLevels.clear();
+    
+    }
+    
     public void destroy() {
     
+        cancelPrefetch();
         mTileRenderPoolExecutor.shutdownNow();
         clear();
         
+        if (mTileMemoryCache != null)
+            mTileMemoryCache.clear();
+        
+        if (mBitmapPool != null)
+            mBitmapPool.clear();
+        
+        if (mTileDiskCache != null)
+            mTileDiskCache.flush();
+        
+        if (mTileMemoryBudget != null)
+            mTileMemoryBudget.release(mReservedByteCount);
+        
+        mReservedByteCount = 0;
+        
         if (mTileRenderThrottleHandler.hasMessages(RENDER_FLAG))
             mTileRenderThrottleHandler.removeMessages(RENDER_FLAG);
     
     }
     
+    /**
+     * Brings the tiles in the current viewport up to date and restores those the memory cache holds
+     * straight away, on the UI thread, so they are drawn on the next frame; only the tiles that have to be
+     * decoded wait for the render buffer and a render thread.
+     */
+    private void drawResidentTiles() {
+    
+        // tiles decoded at a reduced size are decoded again in full as the scale grows back
+        int sampleSize = getSampleSize(mDetailLevelToRender);
+        
+        if (sampleSize < mSampleSize)
+            redecodeSampledTiles(sampleSize);
+        
+        mSampleSize = sampleSize;
+        
+        // if visible columns and rows are same as previously computed, fast-fail
+        boolean changed = mDetailLevelToRender.computeCurrentState();
+        
+        if (!changed && (mDetailLevelToRender == mLastComputedDetailLevel))
+            return;
+        
+        boolean resync = (mDetailLevelToRender != mLastComputedDetailLevel);
+        mLastComputedDetailLevel = mDetailLevelToRender;
+        
+        // determine the tiles that entered and left the viewport since the last computation
+        mDetailLevelToRender.computeVisibleTilesFromViewport();
+        
+        TileSet enteringTiles;
+        
+        if (resync) {
+        
+            // the level is new to the canvas, or the canvas was cleared, so compare against every visible tile
+            cleanup();
+            enteringTiles = mDetailLevelToRender.getVisibleTilesFromLastViewportComputation();
+        
+        } else {
+        
+            releaseTilesLeavingViewport();
+            enteringTiles = mDetailLevelToRender.getTilesEnteringViewport();
+        
+        }
+        
+        mResidentTilesRect.setEmpty();
+        
+        for (int i = 0; i < enteringTiles.size(); ++i) {
+        
+            Tile tile = enteringTiles.get(i);
+            
+            if (!mTilesInCurrentViewport.add(tile))
+                continue;
+            
+            mUnqueuedTiles.add(tile);
+            
+            if (!tile.restoreBitmap(mTileMemoryCache)) {
+            
+                addFallbackTiles(tile);
+                continue;
+            
+            }
+            
+            tile.setTransitionDuration(mTransitionDuration);
+            tile.setTransitionsEnabled(mTransitionsEnabled);
+            
+            mResidentTilesRect.union(tile.getRelativeRect());
+        
+        }
+        
+        if (!mResidentTilesRect.isEmpty())
+            invalidateTiles(mResidentTilesRect);
+    
+    }
+    
     private boolean drawAndClearCurrentDecodedTiles(Canvas canvas) {
     
         boolean shouldInvalidate = false;
         
-        for (Tile tile : mDecodedTilesInCurrentViewport) {
+        for (int i = 0; i < mDecodedTilesInCurrentViewport.size(); ++i) {
         
+            Tile tile = mDecodedTilesInCurrentViewport.get(i);
+            
             // these tiles should already have progress computed by the time they get here
             tile.draw(canvas);
             shouldInvalidate |= tile.getIsDirty();
@@ -194,19 +532,44 @@ public class TileCanvasViewGroup extends ViewGroup {
     
     }
     
+    // fallback tiles are drawn fully opaque, so unlike previous tiles they never need another pass
+    private void drawFallbackTiles(Canvas canvas) {
+    
+        // walk backwards, removing a tile moves the last one into its place
+        for (int i = (mFallbackTiles.size() - 1); i >= 0; --i) {
+        
+            Tile tile = mFallbackTiles.get(i);
+            
+            // hidden by fully drawn tiles, or out of the viewport, so the cache can have the bitmap back
+            if (mDirtyRegion.quickReject(tile.getRelativeRect())) {
+            
+                mFallbackTiles.removeAt(i);
+                releaseFallbackTile(tile);
+            
+            } else
+                tile.draw(canvas);
+        
+        }
+    
+    }
+    
     private boolean drawPreviousTiles(Canvas canvas) {
     
         boolean shouldInvalidate = false;
-        Iterator<Tile> tilesFromLastDetailLevelIterator = mPreviouslyDrawnTiles.iterator();
         
-        while (tilesFromLastDetailLevelIterator.hasNext()) {
+        // walk backwards, removing a tile moves the last one into its place
+        for (int i = (mPreviouslyDrawnTiles.size() - 1); i >= 0; --i) {
         
-            Tile tile = tilesFromLastDetailLevelIterator.next();
+            Tile tile = mPreviouslyDrawnTiles.get(i);
             Rect rect = tile.getRelativeRect();
             
-            if (mDirtyRegion.quickReject(rect))
-                tilesFromLastDetailLevelIterator.remove();
-            else {
+            // hidden by fully drawn tiles, or out of the viewport, so the cache can have the bitmap
+            if (mDirtyRegion.quickReject(rect)) {
+            
+                mPreviouslyDrawnTiles.removeAt(i);
+                releasePreviousTile(tile);
+            
+            } else {
             
                 tile.computeProgress();
                 tile.draw(canvas);
@@ -228,7 +591,7 @@ public class TileCanvasViewGroup extends ViewGroup {
      */
     private void drawTiles(Canvas canvas) {
     
-        if (mPreviouslyDrawnTiles.size() > 0)
+        if ((mPreviouslyDrawnTiles.size() > 0) || (mFallbackTiles.size() > 0))
             drawTilesConsideringPreviouslyDrawnLevel(canvas);
         else
             drawTilesWithoutConsideringPreviouslyDrawnLevel(canvas);
@@ -240,6 +603,9 @@ public class TileCanvasViewGroup extends ViewGroup {
         // compute states, populate opaque region
         boolean shouldInvalidate = establishDirtyRegion();
         
+        // draw coarser tiles standing in for tiles still being decoded, beneath everything else
+        drawFallbackTiles(canvas);
+        
         // draw any previous tiles that are in viewport and not under full opaque current tiles
         shouldInvalidate |= drawPreviousTiles(canvas);
         
@@ -255,9 +621,11 @@ public class TileCanvasViewGroup extends ViewGroup {
     
         boolean shouldInvalidate = false;
         
-        for (Tile tile : mTilesInCurrentViewport) {
+        for (int i = 0; i < mTilesInCurrentViewport.size(); ++i) {
         
-            if (!tile.getState().equals(Tile.STATE_DECODED))
+            Tile tile = mTilesInCurrentViewport.get(i);
+            
+            if (tile.getState() != Tile.STATE_DECODED)
                 continue;
             
             tile.computeProgress();
@@ -270,14 +638,63 @@ public class TileCanvasViewGroup extends ViewGroup {
     
     }
     
+    /**
+     * Brings the bytes reserved against the memory budget up to date with those the tiles hold, and gives
+     * memory back while the budget is exceeded: the caches first, then prefetch work, the tiles of the
+     * previous level and fallback tiles, then the tiles in the viewport padding.  The padding comes back once
+     * the tiles hold less than half the budget.  Called on the UI thread as decoded tiles arrive.
+     */
+    void enforceMemoryBudget() {
+    
+        if ((mTileMemoryBudget == null) || (mDetailLevelToRender == null))
+            return;
+        
+        DetailLevelManager manager = mDetailLevelToRender.getDetailLevelManager();
+        reserveMemory();
+        
+        if (mTileMemoryBudget.trimCaches() == 0) {
+        
+            // the tiles in the padding come back with the next render, unless a trim event holds them off
+            if (manager.getIsViewportPaddingSuspended(DetailLevelManager.PADDING_SUSPENDED_BY_BUDGET)
+                && (mTileMemoryBudget.getReservedSize() < (mTileMemoryBudget.getMaxSize() / 2)))
+                manager.resumeViewportPadding(DetailLevelManager.PADDING_SUSPENDED_BY_BUDGET);
+            
+            return;
+        
+        }
+        
+        cancelPrefetch();
+        
+        releaseFallbackTiles();
+        releasePreviousTiles();
+        invalidate();
+        
+        reserveMemory();
+        
+        if ((mTileMemoryBudget.trimCaches() == 0)
+            || manager.getIsViewportPaddingSuspended(DetailLevelManager.PADDING_SUSPENDED_BY_BUDGET))
+            return;
+        
+        // without the padding, the tiles around the viewport leave it; those in the viewport are never given up
+        manager.suspendViewportPadding(DetailLevelManager.PADDING_SUSPENDED_BY_BUDGET);
+        
+        drawResidentTiles();
+        reserveMemory();
+        
+        mTileMemoryBudget.trimCaches();
+    
+    }
+    
     private boolean establishDirtyRegion() {
     
         boolean shouldInvalidate = false;
         mDirtyRegion.set(getComputedViewport());
         
-        for (Tile tile : mTilesInCurrentViewport) {
+        for (int i = 0; i < mTilesInCurrentViewport.size(); ++i) {
         
-            if (!tile.getState().equals(Tile.STATE_DECODED))
+            Tile tile = mTilesInCurrentViewport.get(i);
+            
+            if (tile.getState() != Tile.STATE_DECODED)
                 continue;
             
             tile.computeProgress();
@@ -294,10 +711,26 @@ public class TileCanvasViewGroup extends ViewGroup {
     
     }
     
+    /**
+     * Returns the pool that released tile bitmaps are offered to for reuse by later decodes.
+     *
+     * @return The BitmapPool instance, or null if pooling is disabled.
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+    
+    private static int getBitmapByteCount(Tile tile) {
+    
+        Bitmap bitmap = tile.getBitmap();
+        return ((bitmap != null) ? TileMemoryCache.getBitmapSize(bitmap) : 0);
+    
+    }
+    
     public BitmapProvider getBitmapProvider() {
     
         if (mBitmapProvider == null)
-            mBitmapProvider = new BitmapProviderAssets();
+            setBitmapProvider(new BitmapProviderAssets());
         
         return mBitmapProvider;
     
@@ -312,6 +745,10 @@ public class TileCanvasViewGroup extends ViewGroup {
     
     }
     
+    public boolean getFallbackEnabled() {
+        return mFallbackEnabled;
+    }
+    
     public float getInvertedScale() {
         return (1f / mScale);
     }
@@ -333,62 +770,216 @@ public class TileCanvasViewGroup extends ViewGroup {
         return mRenderIsCancelled;
     }
     
-    public float getScale() {
-        return mScale;
+    public int getMaxPreviousTileBytes() {
+        return mMaxPreviousTileBytes;
     }
     
-    public int getTransitionDuration() {
-        return mTransitionDuration;
+    public int getMaxPreviousTileCount() {
+        return mMaxPreviousTileCount;
     }
     
-    public boolean getTransitionsEnabled() {
-        return mTransitionsEnabled;
+    private int getPreviousTileByteCount() {
+    
+        int byteCount = 0;
+        
+        for (int i = 0; i < mPreviouslyDrawnTiles.size(); ++i)
+            byteCount += getBitmapByteCount(mPreviouslyDrawnTiles.get(i));
+        
+        return byteCount;
+    
     }
     
-    private void handleInvalidation(boolean shouldInvalidate) {
+    // the bytes held by decoded tiles and by the caches they release their bitmaps to
+    private int getResidentByteCount() {
     
-        if (shouldInvalidate) {
+        int byteCount = 0;
         
-            // there's more work to do, partially opaque tiles were drawn
-            mHasInvalidatedOnCleanOnce = false;
-            invalidate();
+        if (mDetailLevelToRender != null)
+            byteCount += mDetailLevelToRender.getDetailLevelManager().getBitmapByteCount();
         
-        } else {
+        if (mTileMemoryCache != null)
+            byteCount += mTileMemoryCache.getSize();
         
-            // if all tiles were fully opaque, we need another pass to clear our tiles from last level
-            if (!mHasInvalidatedOnCleanOnce) {
-            
-                mHasInvalidatedOnCleanOnce = true;
-                invalidate();
-            
-            }
+        if (mBitmapPool != null)
+            byteCount += mBitmapPool.getSize();
         
-        }
+        return byteCount;
     
     }
     
-    void handleTileRenderException(Throwable throwable) {
+    /**
+     * Returns the factor the tiles of a DetailLevel are decoded smaller than their full size by at the current
+     * scale.  Only tiles of the level being rendered are reduced, and only if the BitmapProvider is a
+     * SampledBitmapProvider.
+     *
+     * @param level The DetailLevel the tiles belong to.
+     *
+     * @return The sample size, 1 to decode tiles in full.
+     */
+    int getSampleSize(DetailLevel level) {
     
-        if (mTileRenderThrowableListener != null)
-            mTileRenderThrowableListener.onRenderThrow(throwable);
+        if ((level == null) || !level.equals(mDetailLevelToRender))
+            return 1;
+        
+        if (!(getBitmapProvider() instanceof SampledBitmapProvider))
+            return 1;
+        
+        return level.getSampleSize();
     
     }
     
-    private void markTilesAsPrevious() {
+    public float getScale() {
+        return mScale;
+    }
     
-        for (Tile tile : mTilesInCurrentViewport)
-            if (tile.getState().equals(Tile.STATE_DECODED))
-                mPreviouslyDrawnTiles.add(tile);
-        
-        mTilesInCurrentViewport.clear();
+    /**
+     * Returns the registry used to share the results of decodes that are in progress.
+     *
+     * @return The TileDecodeRegistry instance, or null if decodes are not shared.
+     */
+    public TileDecodeRegistry getTileDecodeRegistry() {
+        return mTileDecodeRegistry;
+    }
     
+    /**
+     * Returns the scheduler that runs this TileCanvasViewGroup's tile decodes.
+     *
+     * @return The TileRenderScheduler instance.
+     */
+    public TileRenderScheduler getTileRenderScheduler() {
+        return mTileRenderPoolExecutor.getTileRenderScheduler();
     }
     
-    @Override
-    protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
-        
-        canvas.save();
+    /**
+     * Returns the cache tiles are read from before asking the BitmapProvider.
+     *
+     * @return The TileDiskCache instance, or null if disk caching is disabled.
+     */
+    public TileDiskCache getTileDiskCache() {
+        return mTileDiskCache;
+    }
+    
+    /**
+     * Returns the budget the bytes held by tile bitmaps are reserved against.
+     *
+     * @return The TileMemoryBudget instance, or null if tile memory is not budgeted.
+     */
+    public TileMemoryBudget getTileMemoryBudget() {
+        return mTileMemoryBudget;
+    }
+    
+    /**
+     * Returns the cache holding decoded bitmaps of tiles that have recently left the viewport.
+     *
+     * @return The TileMemoryCache instance, or null if caching is disabled.
+     */
+    public TileMemoryCache getTileMemoryCache() {
+        return mTileMemoryCache;
+    }
+    
+    public int getTransitionDuration() {
+        return mTransitionDuration;
+    }
+    
+    public boolean getTransitionsEnabled() {
+        return mTransitionsEnabled;
+    }
+    
+    /**
+     * Returns the stage tile memory was last trimmed to; see trimMemory.
+     *
+     * @return One of the TRIM_STAGE constants.
+     */
+    public @TrimStage int getTrimStage() {
+        return mTrimStage;
+    }
+    
+    private void handleInvalidation(boolean shouldInvalidate) {
+    
+        if (shouldInvalidate) {
+        
+            // there's more work to do, partially opaque tiles were drawn
+            mHasInvalidatedOnCleanOnce = false;
+            invalidate();
+        
+        } else {
+        
+            // if all tiles were fully opaque, we need another pass to clear our tiles from last level
+            if (!mHasInvalidatedOnCleanOnce) {
+            
+                mHasInvalidatedOnCleanOnce = true;
+                invalidate();
+            
+            }
+        
+        }
+    
+    }
+    
+    void handleTileRenderException(Throwable throwable) {
+    
+        if (mTileRenderThrowableListener != null)
+            mTileRenderThrowableListener.onRenderThrow(throwable);
+    
+    }
+    
+    /**
+     * Invalidates the area covered by tiles that were just added to the canvas.
+     *
+     * @param rect The area in unscaled pixels, as returned by Tile.getRelativeRect.
+     */
+    void invalidateTiles(Rect rect) {
+    
+        // the canvas is scaled when drawn, round outwards so partially covered pixels are redrawn too
+        invalidate((int) Math.floor(rect.left * mScale), (int) Math.floor(rect.top * mScale),
+            (int) Math.ceil(rect.right * mScale), (int) Math.ceil(rect.bottom * mScale));
+    
+    }
+    
+    /**
+     * Keeps the decoded tiles of the level being left drawn until the new level covers them, within the count
+     * and byte caps.  Tiles outside the viewport are released straight away, as they wouldn't be drawn.
+     */
+    private void markTilesAsPrevious() {
+    
+        Rect viewport = getComputedViewport();
+        boolean marked = false;
+        
+        for (int i = 0; i < mTilesInCurrentViewport.size(); ++i) {
+        
+            Tile tile = mTilesInCurrentViewport.get(i);
+            
+            if (tile.getState() != Tile.STATE_DECODED)
+                continue;
+            
+            if ((viewport != null) && Rect.intersects(viewport, tile.getRelativeRect()))
+                marked |= mPreviouslyDrawnTiles.add(tile);
+            else
+                tile.reset(mTileMemoryCache, mBitmapPool);
+        
+        }
+        
+        // a level being left again becomes the newest
+        if (marked) {
+        
+            mPreviousDetailLevels.remove(mDetailLevelToRender);
+            mPreviousDetailLevels.add(mDetailLevelToRender);
+        
+        }
+        
+        mTilesInCurrentViewport.clear();
+        mUnqueuedTiles.clear();
+        
+        mLastComputedDetailLevel = null;
+        cullPreviousTiles();
+    
+    }
+    
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        
+        canvas.save();
         canvas.scale(mScale, mScale);
         
         drawTiles(canvas);
@@ -408,10 +999,30 @@ public class TileCanvasViewGroup extends ViewGroup {
     
     }
     
-    void onRenderTaskPostExecute() {
+    /**
+     * Called, from any thread, exactly once when every tile of a render batch has been handled.  A batch
+     * isn't the same as a call to TileRenderPoolExecutor.queue: a render started while a batch is outstanding
+     * joins that batch, so onRenderTaskPreExecute and this are called once for however many renders it took.
+     *
+     * @param generation The render generation the batch belonged to.
+     */
+    void onRenderTaskPostExecute(final long generation) {
     
-        mIsRendering = false;
-        mTileRenderThrottleHandler.post(mRenderPostExecuteRunnable);
+        mTileRenderThrottleHandler.post(new Runnable() {
+        
+            @Override
+            public void run() {
+            
+                // cancelRender may have started a new generation since the batch completed
+                if (generation != mTileRenderPoolExecutor.getGeneration())
+                    return;
+                
+                mIsRendering = false;
+                mRenderPostExecuteRunnable.run();
+            
+            }
+        
+        });
     
     }
     
@@ -424,6 +1035,186 @@ public class TileCanvasViewGroup extends ViewGroup {
     
     }
     
+    /**
+     * Starts decoding the tiles of a level that are expected to become visible shortly, such as the
+     * destination of a fling.  Decoded tiles are kept in the memory cache until the viewport reaches them.
+     * Prefetch work from an earlier call that is not part of the new viewport is abandoned.
+     *
+     * @param level    The DetailLevel to prefetch tiles from.
+     * @param viewport The viewport expected, in pixels at the scale supplied.
+     * @param scale    The scale the viewport is expressed at.
+     * @param priority Either PREFETCH_PRIORITY_HIGH or PREFETCH_PRIORITY_LOW.
+     */
+    public void prefetch(DetailLevel level, Rect viewport, float scale, int priority) {
+    
+        if ((level == null) || mRenderIsCancelled || mRenderIsSuppressed || (mTrimStage != TRIM_STAGE_NONE))
+            return;
+        
+        // prefetched tiles wait in the cache, which the budget leaves no room for
+        if ((mTileMemoryBudget != null) && mTileMemoryBudget.isExhausted())
+            return;
+        
+        // the frames of a pinch or fling mostly project onto the same cells, which are being prefetched already
+        level.computeCellsForViewport(viewport, scale, mPrefetchCells);
+        
+        if (level.equals(mPrefetchDetailLevel) && mPrefetchCells.equals(mPrefetchedCells))
+            return;
+        
+        mPrefetchDetailLevel = level;
+        mPrefetchedCells.set(mPrefetchCells);
+        
+        level.computeTilesForViewport(viewport, scale, mPrefetchTiles);
+        
+        if (level.equals(mDetailLevelToRender)) {
+        
+            TilePool tilePool = level.getTilePool();
+            
+            // walk backwards, removing a tile moves the last one into its place
+            for (int i = (mPrefetchTiles.size() - 1); i >= 0; --i)
+                if (mTilesInCurrentViewport.contains(mPrefetchTiles.get(i)))
+                    tilePool.release(mPrefetchTiles.removeAt(i));
+        
+        }
+        
+        mTileRenderPoolExecutor.prefetch(this, mPrefetchTiles, priority);
+        mPrefetchTiles.clear();
+    
+    }
+    
+    // hands a fallback tile's bitmap back to the cache and recycles the tile
+    private void releaseFallbackTile(Tile tile) {
+    
+        tile.reset(mTileMemoryCache, mBitmapPool);
+        tile.getDetailLevel().getTilePool().release(tile);
+    
+    }
+    
+    private void releaseFallbackTiles() {
+    
+        for (int i = 0; i < mFallbackTiles.size(); ++i)
+            releaseFallbackTile(mFallbackTiles.get(i));
+        
+        mFallbackTiles.clear();
+    
+    }
+    
+    // releases the bitmap of a tile of a previous level, which the level itself may still refer to
+    private void releasePreviousTile(Tile tile) {
+    
+        // the level may be current again, in which case the tile is drawn as part of it
+        if (mTilesInCurrentViewport.getByKey(tile.getKey()) != tile)
+            tile.reset(mTileMemoryCache, mBitmapPool);
+    
+    }
+    
+    private void releasePreviousTiles() {
+    
+        for (int i = 0; i < mPreviouslyDrawnTiles.size(); ++i)
+            releasePreviousTile(mPreviouslyDrawnTiles.get(i));
+        
+        mPreviouslyDrawnTiles.clear();
+        mPreviousDetailLevels.clear();
+    
+    }
+    
+    private void releasePreviousTiles(DetailLevel level) {
+    
+        // walk backwards, removing a tile moves the last one into its place
+        for (int i = (mPreviouslyDrawnTiles.size() - 1); i >= 0; --i) {
+        
+            Tile tile = mPreviouslyDrawnTiles.get(i);
+            
+            if (!level.equals(tile.getDetailLevel()))
+                continue;
+            
+            mPreviouslyDrawnTiles.removeAt(i);
+            releasePreviousTile(tile);
+        
+        }
+        
+        mPreviousDetailLevels.remove(level);
+    
+    }
+    
+    // resets a tile that left the viewport and recycles it
+    private void releaseTile(Tile tile) {
+    
+        tile.reset(mTileMemoryCache, mBitmapPool);
+        mUnqueuedTiles.remove(tile);
+        
+        // nothing refers to the tile any more unless it is still drawn as part of the last level
+        if (!mPreviouslyDrawnTiles.contains(tile))
+            mDetailLevelToRender.getTilePool().release(tile);
+    
+    }
+    
+    // releases the bitmaps of the tiles in the viewport, which are queued again once a render is requested
+    private void releaseTilesInViewport() {
+    
+        cancelRender();
+        
+        for (int i = 0; i < mTilesInCurrentViewport.size(); ++i)
+            mTilesInCurrentViewport.get(i).reset(mTileMemoryCache, mBitmapPool);
+    
+    }
+    
+    private void releaseTilesLeavingViewport() {
+    
+        TileSet leavingTiles = mDetailLevelToRender.getTilesLeavingViewport();
+        
+        for (int i = 0; i < leavingTiles.size(); ++i) {
+        
+            // normally the same instance, but an equal tile may have been added first
+            Tile tile = mTilesInCurrentViewport.getByKey(leavingTiles.get(i).getKey());
+            
+            if ((tile != null) && mTilesInCurrentViewport.remove(tile))
+                releaseTile(tile);
+        
+        }
+    
+    }
+    
+    /**
+     * Queues the current tiles decoded, or being decoded, at more than the sample size supplied to be decoded
+     * again.  A decoded tile hands its bitmap to a fallback tile, which is drawn until the new one fades in.
+     */
+    private void redecodeSampledTiles(int sampleSize) {
+    
+        TilePool tilePool = mDetailLevelToRender.getTilePool();
+        
+        for (int i = 0; i < mTilesInCurrentViewport.size(); ++i) {
+        
+            Tile tile = mTilesInCurrentViewport.get(i);
+            
+            if (tile.getSampleSize() <= sampleSize)
+                continue;
+            
+            int state = tile.getState();
+            
+            if (state == Tile.STATE_PENDING_DECODE) {
+            
+                tile.reset(mTileMemoryCache, mBitmapPool);
+                mUnqueuedTiles.add(tile);
+                
+                continue;
+            
+            }
+            
+            if (state != Tile.STATE_DECODED)
+                continue;
+            
+            Tile fallbackTile = tilePool.obtain(tile.getColumn(), tile.getRow(), mDetailLevelToRender.getTileWidth(),
+                mDetailLevelToRender.getTileHeight(), tile.getData(), mDetailLevelToRender);
+            
+            if (!tile.moveBitmap(fallbackTile) || !mFallbackTiles.add(fallbackTile))
+                releaseFallbackTile(fallbackTile);
+            
+            mUnqueuedTiles.add(tile);
+        
+        }
+    
+    }
+    
     void renderTiles() {
     
         if (!mRenderIsCancelled && !mRenderIsSuppressed && (mDetailLevelToRender != null))
@@ -431,6 +1222,28 @@ public class TileCanvasViewGroup extends ViewGroup {
     
     }
     
+    // brings the bytes reserved against the budget up to date with those the tiles hold
+    private void reserveMemory() {
+    
+        int byteCount = mDetailLevelToRender.getDetailLevelManager().getBitmapByteCount();
+        
+        if (byteCount > mReservedByteCount)
+            mTileMemoryBudget.reserve(byteCount - mReservedByteCount);
+        else
+            mTileMemoryBudget.release(mReservedByteCount - byteCount);
+        
+        mReservedByteCount = byteCount;
+    
+    }
+    
+    /**
+     * Ends the trim stage set by trimMemory.  Nothing is restored straight away; prefetching resumes, and
+     * released tiles come back from the caches or are decoded again as they are next rendered.
+     */
+    public void resetTrimStage() {
+        mTrimStage = TRIM_STAGE_NONE;
+    }
+    
     /** Enables new render tasks to start */
     public void resumeRender() {
         mRenderIsSuppressed = false;
@@ -449,19 +1262,116 @@ public class TileCanvasViewGroup extends ViewGroup {
         if (mDetailLevelToRender == null)
             return;
         
+        // tiles held by the memory cache don't need to wait for the render buffer
+        if (!mRenderIsSuppressed)
+            drawResidentTiles();
+        
         if (!mTileRenderThrottleHandler.hasMessages(RENDER_FLAG))
             mTileRenderThrottleHandler.sendEmptyMessageDelayed(RENDER_FLAG, mRenderBuffer);
     
     }
     
+    /**
+     * Sets the pool that released tile bitmaps are offered to.  A single instance may be shared between
+     * several TileViews; pass null to disable pooling.
+     *
+     * @param bitmapPool The BitmapPool instance to use.
+     */
+    public void setBitmapPool(BitmapPool bitmapPool) {
+    
+        mBitmapPool = bitmapPool;
+        
+        if (mTileMemoryBudget != null)
+            mTileMemoryBudget.setBitmapPool(bitmapPool);
+        
+        if (mBitmapProvider instanceof PooledBitmapProvider)
+            ((PooledBitmapProvider) mBitmapProvider).setBitmapPool(bitmapPool);
+        
+        if (mTileMemoryCache != null)
+            mTileMemoryCache.setBitmapPool(bitmapPool);
+    
+    }
+    
     public void setBitmapProvider(BitmapProvider bitmapProvider) {
+    
         mBitmapProvider = bitmapProvider;
+        
+        if (bitmapProvider instanceof PooledBitmapProvider)
+            ((PooledBitmapProvider) bitmapProvider).setBitmapPool(mBitmapPool);
+    
+    }
+    
+    /**
+     * Sets whether tiles that are still being decoded are covered by scaled up tiles of a coarser
+     * DetailLevel the memory cache holds, rather than left blank.  Enabled by default.
+     *
+     * @param enabled True to draw coarser tiles in place of tiles that aren't decoded yet.
+     */
+    public void setFallbackEnabled(boolean enabled) {
+    
+        mFallbackEnabled = enabled;
+        
+        if (!enabled) {
+        
+            releaseFallbackTiles();
+            invalidate();
+        
+        }
+    
+    }
+    
+    /**
+     * Sets the number of bytes the tiles of previous DetailLevels may hold while the current level decodes;
+     * past it the tiles of the oldest levels are released first.  Defaults to a sixteenth of the memory
+     * available to the application.
+     *
+     * @param bytes The number of bytes the tiles of previous levels may hold.
+     */
+    public void setMaxPreviousTileBytes(int bytes) {
+    
+        mMaxPreviousTileBytes = Math.max(0, bytes);
+        
+        cullPreviousTiles();
+        invalidate();
+    
+    }
+    
+    /**
+     * Sets the number of tiles of previous DetailLevels kept drawn while the current level decodes; past it
+     * the tiles of the oldest levels are released first.  Defaults to DEFAULT_MAX_PREVIOUS_TILE_COUNT.
+     *
+     * @param count The number of tiles of previous levels kept.
+     */
+    public void setMaxPreviousTileCount(int count) {
+    
+        mMaxPreviousTileCount = Math.max(0, count);
+        
+        cullPreviousTiles();
+        invalidate();
+    
     }
     
     public void setRenderBuffer(int buffer) {
         mRenderBuffer = buffer;
     }
     
+    /**
+     * Sets the point tile decoding should radiate from (e.g., the focus of a pinch), rather than the center
+     * of the viewport.  Tiles closest to this point are decoded first.
+     *
+     * @param x The horizontal position, in scaled pixels relative to the content.
+     * @param y The vertical position, in scaled pixels relative to the content.
+     */
+    public void setRenderFocalPoint(int x, int y) {
+    
+        mHasRenderFocalPoint = true;
+        mRenderFocalPointX = x;
+        mRenderFocalPointY = y;
+        
+        updateRenderFocalPoint();
+    
+    }
+    
     public void setScale(float factor) {
     
         mScale = factor;
@@ -469,10 +1379,88 @@ public class TileCanvasViewGroup extends ViewGroup {
     
     }
     
+    /**
+     * Sets the registry used to share the result of a decode with requests for an equal tile made while it
+     * is in progress.  A registry may be shared between TileViews showing the same source with the same
+     * BitmapProvider; pass null to decode every request independently.
+     *
+     * @param tileDecodeRegistry The TileDecodeRegistry instance to use.
+     */
+    public void setTileDecodeRegistry(TileDecodeRegistry tileDecodeRegistry) {
+        mTileDecodeRegistry = tileDecodeRegistry;
+    }
+    
+    /**
+     * Sets a cache of encoded tiles on disk, consulted before the BitmapProvider and filled with what it
+     * produces.  Disk caching is disabled by default; pass null to disable it again.
+     *
+     * @param tileDiskCache The TileDiskCache instance to use.
+     */
+    public void setTileDiskCache(TileDiskCache tileDiskCache) {
+        mTileDiskCache = tileDiskCache;
+    }
+    
+    /**
+     * Sets the budget the bytes held by tile bitmaps, the cache and the pool are reserved against.  A single
+     * instance may be shared between several TileViews, along with their cache and pool; pass null to leave
+     * tile memory unbudgeted.
+     *
+     * @param tileMemoryBudget The TileMemoryBudget instance to use.
+     */
+    public void setTileMemoryBudget(TileMemoryBudget tileMemoryBudget) {
+    
+        if (mTileMemoryBudget != null)
+            mTileMemoryBudget.release(mReservedByteCount);
+        
+        mReservedByteCount = 0;
+        mTileMemoryBudget = tileMemoryBudget;
+        
+        if (tileMemoryBudget != null) {
+        
+            tileMemoryBudget.setBitmapPool(mBitmapPool);
+            tileMemoryBudget.setTileMemoryCache(mTileMemoryCache);
+        
+        }
+        
+        // the padding given up for the old budget comes back with the next render, unless a trim event holds it off
+        if (mDetailLevelToRender != null)
+            mDetailLevelToRender.getDetailLevelManager().resumeViewportPadding(
+                DetailLevelManager.PADDING_SUSPENDED_BY_BUDGET);
+    
+    }
+    
+    /**
+     * Sets the cache used to keep decoded bitmaps of tiles that leave the viewport.  A single instance
+     * may be shared between several TileViews; pass null to disable caching.
+     *
+     * @param tileMemoryCache The TileMemoryCache instance to use.
+     */
+    public void setTileMemoryCache(TileMemoryCache tileMemoryCache) {
+    
+        mTileMemoryCache = tileMemoryCache;
+        
+        if (tileMemoryCache != null)
+            tileMemoryCache.setBitmapPool(mBitmapPool);
+        
+        if (mTileMemoryBudget != null)
+            mTileMemoryBudget.setTileMemoryCache(tileMemoryCache);
+    
+    }
+    
     public void setTileRenderListener(TileRenderListener tileRenderListener) {
         mTileRenderListener = tileRenderListener;
     }
     
+    /**
+     * Sets the scheduler that runs tile decodes.  A single scheduler may be shared between several
+     * TileViews, which then take turns decoding tiles rather than each running a thread pool of its own.
+     *
+     * @param tileRenderScheduler The TileRenderScheduler instance to use.
+     */
+    public void setTileRenderScheduler(TileRenderScheduler tileRenderScheduler) {
+        mTileRenderPoolExecutor.setTileRenderScheduler(tileRenderScheduler);
+    }
+    
     public void setTileRenderThrowableListener(TileRenderThrowableListener tileRenderThrowableListener) {
         mTileRenderThrowableListener = tileRenderThrowableListener;
     }
@@ -490,6 +1478,87 @@ public class TileCanvasViewGroup extends ViewGroup {
         mRenderIsSuppressed = true;
     }
     
+    /**
+     * Sheds tile memory while the system is short of it.  Each stage releases what the stages before it do as
+     * well, and holds until resetTrimStage is invoked, refusing prefetch work and fallback tiles meanwhile.
+     * Released bitmaps are not kept in the caches, so the memory is actually returned; the viewport padding
+     * should be suspended before trimming to TRIM_STAGE_PADDING, so that the tiles in it are leaving.
+     *
+     * @param stage One of the TRIM_STAGE constants.
+     *
+     * @return The number of bytes released, approximate if the caches are shared with other TileViews.
+     */
+    public int trimMemory(@TrimStage int stage) {
+    
+        mTrimStage = stage;
+        
+        if (stage == TRIM_STAGE_NONE)
+            return 0;
+        
+        int byteCount = getResidentByteCount();
+        
+        // released tiles hand their bitmaps to the caches, which give the same number of bytes back up
+        int cacheSize = ((mTileMemoryCache != null) ? mTileMemoryCache.getSize() : 0);
+        int poolSize = ((mBitmapPool != null) ? mBitmapPool.getSize() : 0);
+        
+        cancelPrefetch();
+        
+        releaseFallbackTiles();
+        releasePreviousTiles();
+        
+        // without the padding, the tiles around the viewport leave it
+        if ((stage >= TRIM_STAGE_PADDING) && (mDetailLevelToRender != null))
+            drawResidentTiles();
+        
+        if (stage >= TRIM_STAGE_ALL)
+            releaseTilesInViewport();
+        
+        if (stage >= TRIM_STAGE_CACHES) {
+        
+            cacheSize = poolSize = 0;
+            
+            if (mBitmapProvider instanceof TrimmableBitmapProvider)
+                ((TrimmableBitmapProvider) mBitmapProvider).trimMemory();
+        
+        }
+        
+        // the cache hands what it evicts to the pool, so it is trimmed first
+        if (mTileMemoryCache != null)
+            mTileMemoryCache.trimToSize(cacheSize);
+        
+        if (mBitmapPool != null)
+            mBitmapPool.trimToSize(poolSize);
+        
+        invalidate();
+        return Math.max(0, (byteCount - getResidentByteCount()));
+    
+    }
+    
+    /**
+     * Re-orders queued tiles around the current focal point; call this when the viewport moves so tiles
+     * that have scrolled into the middle of the screen jump ahead of those at the edges.
+     */
+    public void updateRenderFocalPoint() {
+    
+        if (mDetailLevelToRender == null)
+            return;
+        
+        float x = mRenderFocalPointX, y = mRenderFocalPointY;
+        
+        if (!mHasRenderFocalPoint) {
+        
+            Rect viewport = mDetailLevelToRender.getDetailLevelManager().getViewport();
+            
+            x = viewport.centerX();
+            y = viewport.centerY();
+        
+        }
+        
+        float invertedScale = getInvertedScale();
+        mTileRenderPoolExecutor.setFocalPoint((x * invertedScale), (y * invertedScale));
+    
+    }
+    
     public void updateTileSet(DetailLevel level) {
     
         if ((level == null) || level.equals(mDetailLevelToRender))
@@ -498,6 +1567,10 @@ public class TileCanvasViewGroup extends ViewGroup {
         cancelRender();
         markTilesAsPrevious();
         
+        // the new level may be the one the fallback or previous tiles came from, its tiles want their bitmaps back
+        releaseFallbackTiles();
+        releasePreviousTiles(level);
+        
         mDetailLevelToRender = level;
         requestRender();
     
@@ -0,0 +1,219 @@
+package robertapengelly.support.tileview.tile;
+
+import  android.graphics.Bitmap;
+
+import  java.util.HashMap;
+import  java.util.LinkedList;
+
+import  robertapengelly.support.tileview.detail.DetailLevel;
+
+/**
+ * Keeps track of the tiles currently being produced by a BitmapProvider, keyed by DetailLevel, row and
+ * column, so that a second request for a tile already being decoded waits for that decode rather than
+ * running the provider again.  This happens when tiles that were marked as previous are requested again
+ * before their decode finished, e.g., when a pinch is reversed.
+ *
+ * Every tile needs a bitmap of its own, so once the first decode finishes the waiting requests are handed
+ * copies; if the first tile is no longer wanted its bitmap is handed over instead.  A registry may be shared
+ * by TileViews that show the same source with the same BitmapProvider.
+ */
+public class TileDecodeRegistry {
+
+    private int mSharedCount;
+    
+    private final HashMap<Key, Flight> mFlights = new HashMap<>();
+    
+    /**
+     * Marks the tile's decode as finished and hands the result to any requests that were waiting for it.
+     *
+     * @param tile         The tile that was decoded.
+     * @param bitmap       The decoded bitmap, or null if the decode failed.
+     * @param transferable True if the decoded tile no longer needs the bitmap, so it can be handed over.
+     *
+     * @return True if the bitmap was handed to a waiting request, in which case the caller must not keep it.
+     */
+    boolean complete(Tile tile, Bitmap bitmap, boolean transferable) {
+    
+        Flight flight;
+        
+        synchronized (this) {
+            flight = mFlights.remove(new Key(tile));
+        }
+        
+        if (flight == null)
+            return false;
+        
+        // no new requests can join once the flight has been removed, so the number of copies is final
+        int waiters;
+        
+        synchronized (flight) {
+            waiters = flight.mWaiters;
+        }
+        
+        LinkedList<Bitmap> results = new LinkedList<>();
+        boolean transferred = false;
+        
+        if ((bitmap != null) && (waiters > 0)) {
+        
+            if (transferable) {
+            
+                results.add(bitmap);
+                transferred = true;
+            
+            }
+            
+            while (results.size() < waiters) {
+            
+                Bitmap copy;
+                
+                try {
+                    copy = bitmap.copy(bitmap.getConfig(), bitmap.isMutable());
+                } catch (OutOfMemoryError error) {
+                    // the remaining requests will decode the tile themselves
+                    break;
+                }
+                
+                if (copy == null)
+                    break;
+                
+                results.add(copy);
+            
+            }
+        
+        }
+        
+        synchronized (this) {
+            mSharedCount += results.size();
+        }
+        
+        synchronized (flight) {
+        
+            flight.mDone = true;
+            flight.mResults = results;
+            
+            flight.notifyAll();
+        
+        }
+        
+        return transferred;
+    
+    }
+    
+    /**
+     * Returns the number of decodes avoided because a request was handed the result of another.
+     *
+     * @return The number of decodes avoided.
+     */
+    public synchronized int getSharedCount() {
+        return mSharedCount;
+    }
+    
+    /**
+     * Registers a decode of the tile.  If no decode of an equal tile is in progress, null is returned and the
+     * caller must decode the tile itself and then call complete; otherwise the returned Flight can be awaited
+     * for the result.
+     *
+     * @param tile The tile about to be decoded.
+     *
+     * @return The decode in progress to wait for, or null if the caller should decode the tile.
+     */
+    synchronized Flight join(Tile tile) {
+    
+        Key key = new Key(tile);
+        Flight flight = mFlights.get(key);
+        
+        if (flight == null) {
+        
+            mFlights.put(key, new Flight());
+            return null;
+        
+        }
+        
+        synchronized (flight) {
+            ++flight.mWaiters;
+        }
+        
+        return flight;
+    
+    }
+    
+    static class Flight {
+    
+        private boolean mDone;
+        private int mWaiters;
+        
+        private LinkedList<Bitmap> mResults;
+        
+        /**
+         * Waits for the decode to finish.
+         *
+         * @return A bitmap the caller now owns, or null if the decode failed and the caller should decode
+         *         the tile itself.
+         *
+         * @throws InterruptedException If the waiting thread was interrupted, e.g., because its tile was cancelled.
+         */
+        synchronized Bitmap await() throws InterruptedException {
+        
+            try {
+            
+                while (!mDone)
+                    wait();
+            
+            } catch (InterruptedException ex) {
+            
+                --mWaiters;
+                throw ex;
+            
+            }
+            
+            return mResults.poll();
+        
+        }
+    
+    }
+    
+    private static class Key {
+    
+        final int column, row;
+        final DetailLevel level;
+        
+        Key(Tile tile) {
+        
+            column = tile.getColumn();
+            level = tile.getDetailLevel();
+            row = tile.getRow();
+        
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+        
+            if (this == obj)
+                return true;
+            
+            if (obj instanceof Key) {
+            
+                Key key = (Key) obj;
+                return ((column == key.column) && (row == key.row) && level.equals(key.level));
+            
+            }
+            
+            return false;
+        
+        }
+        
+        @Override
+        public int hashCode() {
+        
+            int hash = 17;
+            hash = ((hash * 31) + column);
+            hash = ((hash * 31) + row);
+            hash = ((hash * 31) + level.hashCode());
+            
+            return hash;
+        
+        }
+    
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+package robertapengelly.support.tileview.tile;
+
+import  java.util.Arrays;
+
+import  robertapengelly.support.tileview.detail.DetailLevel;
+
+/**
+ * Keeps tiles that left the viewport so they can be reused for the tiles that enter it, which lets the
+ * visible tile set be rebuilt while scrolling without allocating.  A tile is only taken back once nothing
+ * can still be using it, i.e., once it has given up its bitmap and no decode of it is in flight; other tiles
+ * are left to the garbage collector.
+ *
+ * Tiles are handed out and taken back on the UI thread.
+ */
+public class TilePool {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 64;
+    
+    private int mSize;
+    
+    private Tile[] mTiles;
+    
+    public TilePool() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+    
+    /** @param maxSize The maximum number of tiles kept for reuse. */
+    public TilePool(int maxSize) {
+        mTiles = new Tile[Math.max(0, maxSize)];
+    }
+    
+    public void clear() {
+    
+        Arrays.fill(mTiles, 0, mSize, null);
+        mSize = 0;
+    
+    }
+    
+    /**
+     * Returns the number of tiles waiting to be reused.
+     *
+     * @return The number of tiles waiting to be reused.
+     */
+    public int getSize() {
+        return mSize;
+    }
+    
+    /**
+     * Returns a tile for the cell supplied, reusing a released tile if there is one.
+     *
+     * @return A tile in the STATE_UNASSIGNED state.
+     */
+    public Tile obtain(int column, int row, int width, int height, Object data, DetailLevel detailLevel) {
+    
+        if (mSize == 0)
+            return new Tile(column, row, width, height, data, detailLevel);
+        
+        Tile tile = mTiles[--mSize];
+        mTiles[mSize] = null;
+        
+        tile.set(column, row, width, height, data, detailLevel);
+        return tile;
+    
+    }
+    
+    /**
+     * Takes a tile back for reuse.  The caller must not hold on to the tile afterwards, nor leave it in any
+     * TileSet, as reusing it changes its key.
+     *
+     * @param tile The tile to reuse.
+     *
+     * @return True if the tile was taken, false if it is still in use or the pool is full.
+     */
+    public boolean release(Tile tile) {
+    
+        if ((mSize == mTiles.length) || !tile.isRecyclable())
+            return false;
+        
+        mTiles[mSize++] = tile;
+        return true;
+    
+    }
+
+}
\ No newline at end of file
@@ -1,22 +1,42 @@
 package robertapengelly.support.tileview.tile;
 
+import  android.annotation.TargetApi;
+import  android.graphics.Bitmap;
+import  android.graphics.Rect;
+import  android.os.Build;
 import  android.os.Handler;
 import  android.os.Looper;
 import  android.os.Message;
 import  android.support.annotation.IntDef;
+import  android.view.Choreographer;
 
 import  java.lang.annotation.Retention;
 import  java.lang.annotation.RetentionPolicy;
 import  java.lang.ref.WeakReference;
+import  java.util.concurrent.ConcurrentLinkedQueue;
+import  java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Collects the runnables that finished decoding and hands their tiles to the TileCanvasViewGroup on the UI
+ * thread.  Tiles that finish together are handed over together, once per frame, so the canvas is invalidated
+ * once for the area they cover rather than once per tile.  Frames are followed with Choreographer from Jelly
+ * Bean; on older devices the tiles are handed over as soon as the UI thread gets to them.
+ */
 class TileRenderHandler extends Handler {
 
     public static final int RENDER_ERROR      = -1;
     public static final int RENDER_INCOMPLETE = 0;
     public static final int RENDER_COMPLETE   = 1;
     
+    private static final int SCHEDULE_DRAIN = 2;
+    
+    private FrameDrainCallback mFrameDrainCallback;
     private WeakReference<TileCanvasViewGroup> mTileCanvasViewGroupWeakReference;
     
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    private final ConcurrentLinkedQueue<TileRenderRunnable> mFinishedRunnables = new ConcurrentLinkedQueue<>();
+    private final Rect mInvalidRect = new Rect();
+    
     /** @hide **/
     @IntDef({RENDER_ERROR, RENDER_INCOMPLETE, RENDER_COMPLETE})
     @Retention(RetentionPolicy.SOURCE)
@@ -30,6 +50,69 @@ class TileRenderHandler extends Handler {
         super(looper);
     }
     
+    /**
+     * Hands every finished runnable collected since the last frame to the TileCanvasViewGroup, then
+     * invalidates the union of the tiles that were added to the canvas.
+     */
+    void drain() {
+    
+        // cleared first, so a runnable that finishes during the drain schedules another one
+        mDrainScheduled.set(false);
+        
+        TileCanvasViewGroup tileCanvasViewGroup = getTileCanvasViewGroup();
+        TileRenderRunnable tileRenderRunnable;
+        
+        mInvalidRect.setEmpty();
+        
+        while ((tileRenderRunnable = mFinishedRunnables.poll()) != null) {
+        
+            if (tileCanvasViewGroup == null)
+                continue;
+            
+            Tile tile = tileRenderRunnable.getTile();
+            
+            if (tile == null)
+                continue;
+            
+            // the tile was reused for another cell, the bitmap can't be kept for it
+            if (tile.getKey() != tileRenderRunnable.getTileKey()) {
+            
+                tile.releaseBitmap(tileRenderRunnable.getBitmap(), tileRenderRunnable.getSampleSize(), null,
+                    tileCanvasViewGroup.getBitmapPool());
+                continue;
+            
+            }
+            
+            if (tileRenderRunnable.isDone()) {
+            
+                if (publishTile(tileCanvasViewGroup, tile, tileRenderRunnable))
+                    mInvalidRect.union(tile.getRelativeRect());
+                
+                continue;
+            
+            }
+            
+            // a tile that came back empty, or failed, may be tried again on the next render
+            tile.setBitmap(tileRenderRunnable, null);
+            
+            Throwable throwable = tileRenderRunnable.getThrowable();
+            
+            if (throwable != null)
+                tileCanvasViewGroup.handleTileRenderException(throwable);
+        
+        }
+        
+        if (tileCanvasViewGroup == null)
+            return;
+        
+        if (!mInvalidRect.isEmpty())
+            tileCanvasViewGroup.invalidateTiles(mInvalidRect);
+        
+        // the tiles handed over hold new bitmaps, which have to fit the memory budget
+        tileCanvasViewGroup.enforceMemoryBudget();
+    
+    }
+    
     public TileCanvasViewGroup getTileCanvasViewGroup() {
     
         if (mTileCanvasViewGroupWeakReference == null)
@@ -42,32 +125,81 @@ class TileRenderHandler extends Handler {
     @Override
     public void handleMessage(Message message) {
     
-        TileRenderRunnable tileRenderRunnable = (TileRenderRunnable) message.obj;
-        TileCanvasViewGroup tileCanvasViewGroup = getTileCanvasViewGroup();
-        
-        if (tileCanvasViewGroup == null)
+        if (message.what != SCHEDULE_DRAIN)
             return;
         
-        Tile tile = tileRenderRunnable.getTile();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
         
-        if (tile == null)
+            drain();
             return;
         
-        switch(message.what) {
+        }
+        
+        if (mFrameDrainCallback == null)
+            mFrameDrainCallback = new FrameDrainCallback(this);
+        
+        mFrameDrainCallback.post();
+    
+    }
+    
+    /**
+     * Queues a runnable that finished decoding, successfully or not, to be handed over on the next frame.
+     * Safe to call from any thread.
+     *
+     * @param tileRenderRunnable The runnable that finished.
+     */
+    void offer(TileRenderRunnable tileRenderRunnable) {
+    
+        mFinishedRunnables.offer(tileRenderRunnable);
+        
+        // only the first runnable of a frame needs to wake the UI thread
+        if (mDrainScheduled.compareAndSet(false, true))
+            sendEmptyMessage(SCHEDULE_DRAIN);
+    
+    }
+    
+    private boolean publishTile(TileCanvasViewGroup tileCanvasViewGroup, Tile tile, TileRenderRunnable tileRenderRunnable) {
+    
+        Bitmap bitmap = tileRenderRunnable.getBitmap();
         
-            case RENDER_COMPLETE:
-                tileCanvasViewGroup.addTileToCanvas(tile);
-                break;
-            case RENDER_ERROR:
-                tileCanvasViewGroup.handleTileRenderException(tileRenderRunnable.getThrowable());
-                break;
+        // the tile was reset while decoding, so the bitmap is kept in case the tile comes back
+        if (!tile.setBitmap(tileRenderRunnable, bitmap)) {
+        
+            tile.releaseBitmap(bitmap, tileRenderRunnable.getSampleSize(), tileCanvasViewGroup.getTileMemoryCache(),
+                tileCanvasViewGroup.getBitmapPool());
+            return false;
         
         }
+        
+        tile.setTransitionDuration(tileCanvasViewGroup.getTransitionDuration());
+        tile.setTransitionsEnabled(tileCanvasViewGroup.getTransitionsEnabled());
+        
+        return tileCanvasViewGroup.addTileToCanvas(tile);
     
     }
-
+    
     public void setTileCanvasViewGroup(TileCanvasViewGroup tileCanvasViewGroup) {
         mTileCanvasViewGroupWeakReference = new WeakReference<>(tileCanvasViewGroup);
     }
+    
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class FrameDrainCallback implements Choreographer.FrameCallback {
+    
+        private final TileRenderHandler mTileRenderHandler;
+        
+        FrameDrainCallback(TileRenderHandler tileRenderHandler) {
+            mTileRenderHandler = tileRenderHandler;
+        }
+        
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mTileRenderHandler.drain();
+        }
+        
+        void post() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    
+    }
 
 }
\ No newline at end of file
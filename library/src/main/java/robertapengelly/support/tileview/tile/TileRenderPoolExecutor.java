@@ -3,44 +3,61 @@ package robertapengelly.support.tileview.tile;
 import  android.os.Handler;
 
 import  java.lang.ref.WeakReference;
-import  java.util.Set;
-import  java.util.concurrent.LinkedBlockingDeque;
-import  java.util.concurrent.ThreadPoolExecutor;
-import  java.util.concurrent.TimeUnit;
+import  java.util.ArrayList;
+import  java.util.concurrent.BlockingQueue;
+import  java.util.concurrent.atomic.AtomicInteger;
+import  java.util.concurrent.atomic.AtomicLong;
 
-public class TileRenderPoolExecutor extends ThreadPoolExecutor {
+/**
+ * Queues the tiles of one TileCanvasViewGroup and hands them to a TileRenderScheduler to be decoded.  Unless
+ * a scheduler is supplied, the executor creates one of its own and shuts it down along with itself.
+ *
+ * The executor used to be a ThreadPoolExecutor.  It keeps getActiveCount, getQueue, isShutdownOrTerminating
+ * and shutdownNow; the threads, their number, priority and keep-alive time, are configured on the scheduler.
+ */
+public class TileRenderPoolExecutor {
 
-    private static final int AVAILABLE_PROCESSORS = Runtime.getRuntime().availableProcessors();
-    private static final int INITIAL_POOL_SIZE = (AVAILABLE_PROCESSORS >> 1);
-    private static final int KEEP_ALIVE_TIME = 1;
-    private static final int MAXIMUM_POOL_SIZE = AVAILABLE_PROCESSORS;
-    private static final TimeUnit KEEP_ALIVE_TIME_UNIT = TimeUnit.SECONDS;
+    // the batch state keeps the generation in the high 32 bits and the runnables outstanding in the low 32 bits
+    private static final long GENERATION_INCREMENT = (1L << 32);
+    private static final long OUTSTANDING_MASK = (GENERATION_INCREMENT - 1);
     
+    // retaining no tiles empties the queue; never modified
+    private static final TileSet NO_TILES = new TileSet();
+    
+    private boolean mOwnsTileRenderScheduler;
+    private volatile boolean mShutdown;
+    
+    // the generation runnables executed by queue are counted towards, -1 outside of queue; UI thread only
+    private long mQueueGeneration = -1;
+    
+    private ArrayList<TileRenderRunnable> mRemovedRunnables = new ArrayList<>();
+    private AtomicInteger mActiveCount = new AtomicInteger();
+    private AtomicLong mBatchState = new AtomicLong();
+    private TileSet mPrefetchTiles = new TileSet();
     private TileRenderHandler mHandler = new TileRenderHandler();
+    private TileRenderQueue mTileRenderQueue = new TileRenderQueue();
+    private TileRenderScheduler mTileRenderScheduler;
     private WeakReference<TileCanvasViewGroup> mTileCanvasViewGroupWeakReference;
     
     public TileRenderPoolExecutor() {
-        super(INITIAL_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT,
-            new LinkedBlockingDeque<Runnable>());
+        this(new TileRenderScheduler());
+        
+        mOwnsTileRenderScheduler = true;
     
     }
     
-    @Override
-    protected void afterExecute(Runnable runnable, Throwable throwable) {
+    /** @param tileRenderScheduler The scheduler that runs the tiles queued, which may be shared. */
+    public TileRenderPoolExecutor(TileRenderScheduler tileRenderScheduler) {
     
-        synchronized(this) {
-            super.afterExecute(runnable, throwable);
-            
-            if ((getQueue().size() == 0) && (getActiveCount() == 1)) {
-            
-                TileCanvasViewGroup tileCanvasViewGroup = mTileCanvasViewGroupWeakReference.get();
-                
-                if (tileCanvasViewGroup != null)
-                    tileCanvasViewGroup.onRenderTaskPostExecute();
-            
-            }
-        
-        }
+        mTileRenderScheduler = tileRenderScheduler;
+        mTileRenderScheduler.register(this);
+    
+    }
+    
+    void afterExecute(TileRenderRunnable runnable, Throwable throwable) {
+    
+        mActiveCount.decrementAndGet();
+        onRunnableFinished(runnable);
     
     }
     
@@ -56,32 +73,84 @@ public class TileRenderPoolExecutor extends ThreadPoolExecutor {
     
     }
     
+    /**
+     * Abandons the current render batch: queued work is dropped and runnables still decoding no longer count
+     * towards completion, so onRenderTaskPostExecute is not called for the batch.  Prefetch work is left
+     * alone, see cancelPrefetch.
+     */
     public void cancel() {
     
-        for (Runnable runnable : getQueue()) {
+        nextGeneration();
+        mTileRenderQueue.retainTiles(NO_TILES, true, mRemovedRunnables);
+        resetRemovedRunnables();
         
-            if (!(runnable instanceof TileRenderRunnable))
-                continue;
-            
-            TileRenderRunnable tileRenderRunnable = (TileRenderRunnable) runnable;
-            tileRenderRunnable.cancel(true);
-            
-            Tile tile = tileRenderRunnable.getTile();
-            
-            if (tile != null)
-                tile.reset();
+        broadcastCancel();
+    
+    }
+    
+    /** Abandons prefetch work; tiles that have already been decoded are kept in the memory cache. */
+    public void cancelPrefetch() {
+    
+        TileCanvasViewGroup tileCanvasViewGroup = getTileCanvasViewGroup();
         
-        }
+        for (int i = 0; i < mPrefetchTiles.size(); ++i)
+            releasePrefetchTile(tileCanvasViewGroup, mPrefetchTiles.get(i));
         
-        getQueue().clear();
-        broadcastCancel();
+        mPrefetchTiles.clear();
+    
+    }
+    
+    /**
+     * Queues a runnable for the scheduler.  Runnables queued after shutdownNow are dropped.  While queue is
+     * running the runnable becomes part of the current render batch.
+     *
+     * @param runnable The TileRenderRunnable to queue.
+     */
+    void execute(TileRenderRunnable runnable) {
+    
+        if (mShutdown)
+            return;
+        
+        runnable.setGeneration(mQueueGeneration);
+        
+        if (mQueueGeneration >= 0)
+            mBatchState.incrementAndGet();
+        
+        mTileRenderQueue.offer(runnable);
+        mTileRenderScheduler.signalWork(1);
+    
+    }
+    
+    /**
+     * Returns the number of runnables currently being run.
+     *
+     * @return The number of runnables currently being run.
+     */
+    public int getActiveCount() {
+        return mActiveCount.get();
+    }
+    
+    /**
+     * Returns the current render generation, which cancel advances.
+     *
+     * @return The current render generation.
+     */
+    public long getGeneration() {
+        return getGeneration(mBatchState.get());
+    }
     
+    private static long getGeneration(long batchState) {
+        return (batchState >>> 32);
     }
     
     public Handler getHandler(){
         return mHandler;
     }
     
+    TileRenderHandler getTileRenderHandler() {
+        return mHandler;
+    }
+    
     public TileCanvasViewGroup getTileCanvasViewGroup(){
     
         if (mTileCanvasViewGroupWeakReference == null)
@@ -91,43 +160,296 @@ public class TileRenderPoolExecutor extends ThreadPoolExecutor {
     
     }
     
+    public BlockingQueue<Runnable> getQueue() {
+        return mTileRenderQueue;
+    }
+    
+    public TileRenderScheduler getTileRenderScheduler() {
+        return mTileRenderScheduler;
+    }
+    
     public boolean isShutdownOrTerminating() {
-        return (isShutdown() || isTerminating() || isTerminated());
+        return mShutdown;
     }
     
-    public void queue(TileCanvasViewGroup tileCanvasViewGroup, Set<Tile> renderSet) {
+    // UI thread only, so it can't race with queue counting runnables
+    private void nextGeneration() {
     
+        while (true) {
+        
+            long batchState = mBatchState.get();
+            
+            if (mBatchState.compareAndSet(batchState, ((batchState & ~OUTSTANDING_MASK) + GENERATION_INCREMENT)))
+                return;
+        
+        }
+    
+    }
+    
+    // called once for every runnable of a batch, whether it ran or was removed from the queue
+    private void onRunnableFinished(TileRenderRunnable runnable) {
+    
+        long generation = runnable.getGeneration();
+        
+        if (generation >= 0)
+            release(generation);
+    
+    }
+    
+    // called by the scheduler, with its lock held, when it is this executor's turn
+    TileRenderRunnable poll() {
+    
+        TileRenderRunnable runnable = (TileRenderRunnable) mTileRenderQueue.poll();
+        
+        if (runnable != null)
+            mActiveCount.incrementAndGet();
+        
+        return runnable;
+    
+    }
+    
+    /**
+     * Queues tiles that are not visible yet but are expected to be shortly.  Prefetch work that is no
+     * longer part of the set is abandoned, and tiles already being prefetched are left alone.  Decoded
+     * tiles are not drawn; they are handed to the memory cache, where the render pass will find them.
+     * The executor takes over the tiles of the set: those it doesn't keep are released to the TilePool.
+     *
+     * @param tileCanvasViewGroup The TileCanvasViewGroup the tiles are prefetched for.
+     * @param prefetchSet         The tiles to prefetch.
+     * @param priority            The priority class of the work relative to the visible tiles.
+     */
+    public void prefetch(TileCanvasViewGroup tileCanvasViewGroup, TileSet prefetchSet,
+        @TileRenderRunnable.Priority int priority) {
+        
         mTileCanvasViewGroupWeakReference = new WeakReference<>(tileCanvasViewGroup);
+        mHandler.setTileCanvasViewGroup(tileCanvasViewGroup);
+        
+        // walk backwards, removing a tile moves the last one into its place
+        for (int i = (mPrefetchTiles.size() - 1); i >= 0; --i) {
+        
+            Tile tile = mPrefetchTiles.get(i);
+            
+            if (!prefetchSet.contains(tile)) {
+            
+                mPrefetchTiles.removeAt(i);
+                releasePrefetchTile(tileCanvasViewGroup, tile);
+            
+            }
+        
+        }
         
+        for (int i = 0; i < prefetchSet.size(); ++i) {
+        
+            Tile tile = prefetchSet.get(i);
+            
+            // the runnable only holds a weak reference to its tile, so keep prefetched tiles reachable
+            if (!isShutdownOrTerminating() && mPrefetchTiles.add(tile))
+                tile.execute(this, priority);
+            else
+                tile.getDetailLevel().getTilePool().release(tile);
+        
+        }
+    
+    }
+    
+    /**
+     * Starts a render batch, or adds to the current one if it hasn't completed yet; the batch completes once
+     * the tiles of every queue call it spans have been handled.  Queued work for tiles that are no longer part
+     * of the render set is abandoned, prefetch work excepted; prefetched tiles are never part of the render
+     * set.
+     *
+     * @param tileCanvasViewGroup The TileCanvasViewGroup the tiles are rendered for.
+     * @param renderSet           The tiles currently wanted.
+     * @param newTiles            The tiles of the render set that haven't been executed yet.
+     */
+    public void queue(TileCanvasViewGroup tileCanvasViewGroup, TileSet renderSet, TileSet newTiles) {
+    
+        mTileCanvasViewGroupWeakReference = new WeakReference<>(tileCanvasViewGroup);
         mHandler.setTileCanvasViewGroup(tileCanvasViewGroup);
-        tileCanvasViewGroup.onRenderTaskPreExecute();
         
-        for (Runnable runnable : getQueue()) {
+        // hold the batch open while queueing, so it can't complete before every tile has been executed
+        long batchState = mBatchState.incrementAndGet();
+        long generation = getGeneration(batchState);
+        
+        if ((batchState & OUTSTANDING_MASK) == 1)
+            tileCanvasViewGroup.onRenderTaskPreExecute();
         
-            if (runnable instanceof TileRenderRunnable) {
+        // drop queued work for tiles that are no longer wanted in one pass over the queue
+        mTileRenderQueue.retainTiles(renderSet, true, mRemovedRunnables);
+        resetRemovedRunnables();
+        
+        mQueueGeneration = generation;
+        
+        try {
+        
+            for (int i = 0; i < newTiles.size(); ++i) {
             
-                TileRenderRunnable tileRenderRunnable = (TileRenderRunnable) runnable;
+                if(isShutdownOrTerminating())
+                    return;
                 
-                if (tileRenderRunnable.isDone() || tileRenderRunnable.isCancelled())
-                    continue;
+                newTiles.get(i).execute(this);
+            
+            }
+        
+        } finally {
+            mQueueGeneration = -1;
+        }
+        
+        // every tile may have been restored from the cache, in which case this completes the batch
+        release(generation);
+    
+    }
+    
+    /**
+     * Finishes a runnable the scheduler took from the queue but won't run, as it has been shut down.  The
+     * tile goes back to being unassigned, and the runnable no longer holds its batch open.
+     */
+    void reject(TileRenderRunnable runnable) {
+    
+        Tile tile = runnable.getTile();
+        
+        if (tile != null)
+            tile.reset();
+        
+        afterExecute(runnable, null);
+    
+    }
+    
+    /**
+     * Counts a runnable of the batch supplied as finished, completing the batch if it was the last one.
+     * Runnables from an earlier generation are ignored.
+     */
+    private void release(long generation) {
+    
+        while (true) {
+        
+            long batchState = mBatchState.get();
+            
+            if (getGeneration(batchState) != generation)
+                return;
+            
+            if (mBatchState.compareAndSet(batchState, (batchState - 1))) {
+            
+                if (((batchState - 1) & OUTSTANDING_MASK) == 0) {
                 
-                Tile tile = tileRenderRunnable.getTile();
+                    TileCanvasViewGroup tileCanvasViewGroup = getTileCanvasViewGroup();
+                    
+                    if (tileCanvasViewGroup != null)
+                        tileCanvasViewGroup.onRenderTaskPostExecute(generation);
                 
-                if ((tile != null) &&  !renderSet.contains(tile))
-                    tile.reset();
+                }
+                
+                return;
             
             }
         
         }
+    
+    }
+    
+    boolean remove(TileRenderRunnable runnable) {
+    
+        if (!mTileRenderQueue.remove(runnable))
+            return false;
         
-        for (Tile tile : renderSet) {
+        onRunnableFinished(runnable);
+        return true;
+    
+    }
+    
+    // the tile is recycled once any decode of it has stopped
+    private void releasePrefetchTile(TileCanvasViewGroup tileCanvasViewGroup, Tile tile) {
+    
+        if (tileCanvasViewGroup != null)
+            tile.reset(tileCanvasViewGroup.getTileMemoryCache(), tileCanvasViewGroup.getBitmapPool());
+        else
+            tile.reset();
         
-            if(isShutdownOrTerminating())
-                return;
+        tile.getDetailLevel().getTilePool().release(tile);
+    
+    }
+    
+    private void resetRemovedRunnables() {
+    
+        for (int i = 0; i < mRemovedRunnables.size(); ++i) {
+        
+            TileRenderRunnable tileRenderRunnable = mRemovedRunnables.get(i);
+            
+            onRunnableFinished(tileRenderRunnable);
+            tileRenderRunnable.cancel(true);
+            
+            Tile tile = tileRenderRunnable.getTile();
             
-            tile.execute(this);
+            if (tile == null)
+                continue;
+            
+            tile.reset();
+            
+            // a prefetched tile that lost its runnable has to be executed again by the next prefetch
+            if (mPrefetchTiles.getByKey(tile.getKey()) == tile)
+                mPrefetchTiles.remove(tile);
         
         }
+        
+        mRemovedRunnables.clear();
+    
+    }
+    
+    /**
+     * Sets the point queued tiles are ordered around; the tile closest to it is decoded first.  Work that
+     * is already queued is re-ordered once the point has moved by more than a quarter of a tile.
+     *
+     * @param x The horizontal position of the focal point, in unscaled pixels.
+     * @param y The vertical position of the focal point, in unscaled pixels.
+     */
+    public void setFocalPoint(float x, float y) {
+        mTileRenderQueue.setFocalPoint(x, y);
+    }
+    
+    /**
+     * Moves the executor to another scheduler, e.g., one shared with other TileViews.  Queued work moves
+     * with it; work already running finishes where it is.  A scheduler the executor created itself is shut
+     * down.
+     *
+     * @param tileRenderScheduler The TileRenderScheduler to use.
+     */
+    public void setTileRenderScheduler(TileRenderScheduler tileRenderScheduler) {
+    
+        if (tileRenderScheduler == mTileRenderScheduler)
+            return;
+        
+        mTileRenderScheduler.unregister(this);
+        
+        if (mOwnsTileRenderScheduler)
+            mTileRenderScheduler.shutdown();
+        
+        mOwnsTileRenderScheduler = false;
+        mTileRenderScheduler = tileRenderScheduler;
+        mTileRenderScheduler.register(this);
+        
+        int queued = mTileRenderQueue.size();
+        
+        if (queued > 0)
+            mTileRenderScheduler.signalWork(queued);
+    
+    }
+    
+    /**
+     * Abandons queued work and stops accepting more.  A scheduler the executor created itself is shut down;
+     * a shared one carries on serving other TileViews.
+     */
+    public void shutdownNow() {
+    
+        mShutdown = true;
+        nextGeneration();
+        
+        mTileRenderQueue.retainTiles(NO_TILES, false, mRemovedRunnables);
+        resetRemovedRunnables();
+        
+        mTileRenderScheduler.unregister(this);
+        
+        if (mOwnsTileRenderScheduler)
+            mTileRenderScheduler.shutdown();
     
     }
 
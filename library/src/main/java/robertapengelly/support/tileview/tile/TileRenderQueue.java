@@ -0,0 +1,527 @@
+package robertapengelly.support.tileview.tile;
+
+import  android.graphics.Rect;
+
+import  java.util.AbstractQueue;
+import  java.util.Arrays;
+import  java.util.Collection;
+import  java.util.Iterator;
+import  java.util.List;
+import  java.util.NoSuchElementException;
+import  java.util.concurrent.BlockingQueue;
+import  java.util.concurrent.TimeUnit;
+import  java.util.concurrent.locks.Condition;
+import  java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Work queue for TileRenderPoolExecutor that hands out the most urgent tile first: runnables are ordered by
+ * priority class (prefetch work can be placed ahead of or behind the viewport), then by distance from the
+ * focal point.
+ *
+ * The queue is a binary heap of TileRenderRunnable instances, each of which remembers its own position
+ * in the heap, so removing a cancelled runnable is O(log n) rather than a scan.  When the focal point
+ * moves by more than a fraction of a tile every queued runnable is re-scored and the heap rebuilt in a single
+ * O(n) pass; smaller moves, e.g., the frames of a slow scroll, leave the order as it is.
+ */
+class TileRenderQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    // the focal point has to move by more than 1/4 of a tile before queued work is re-scored
+    private static final int FOCAL_POINT_TOLERANCE_FRACTION = 4;
+    
+    private static final int INITIAL_CAPACITY = 64;
+    
+    private float mFocalPointX, mFocalPointY;
+    private int mSize;
+    
+    private TileRenderRunnable[] mHeap = new TileRenderRunnable[INITIAL_CAPACITY];
+    
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    
+    @Override
+    public void clear() {
+    
+        mLock.lock();
+        
+        try {
+        
+            for (int i = 0; i < mSize; ++i) {
+            
+                mHeap[i].setQueueIndex(-1);
+                mHeap[i] = null;
+            
+            }
+            
+            mSize = 0;
+        
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    @Override
+    public boolean contains(Object obj) {
+    
+        mLock.lock();
+        
+        try {
+            return (indexOf(obj) != -1);
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    @Override
+    public int drainTo(Collection<? super Runnable> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+    
+    @Override
+    public int drainTo(Collection<? super Runnable> collection, int maxElements) {
+    
+        if (collection == this)
+            throw new IllegalArgumentException();
+        
+        mLock.lock();
+        
+        try {
+        
+            int count = 0;
+            
+            while ((mSize > 0) && (count < maxElements)) {
+            
+                collection.add(removeAt(0));
+                ++count;
+            
+            }
+            
+            return count;
+        
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    private void grow() {
+        mHeap = Arrays.copyOf(mHeap, (mHeap.length << 1));
+    }
+    
+    private void heapify() {
+    
+        for (int i = ((mSize >>> 1) - 1); i >= 0; --i)
+            siftDown(i);
+    
+    }
+    
+    // must be called with the lock held and the queue not empty
+    private boolean isNearFocalPoint(float x, float y) {
+    
+        Tile tile = mHeap[0].getTile();
+        
+        if (tile == null)
+            return false;
+        
+        Rect rect = tile.getRelativeRect();
+        
+        return ((Math.abs(x - mFocalPointX) * FOCAL_POINT_TOLERANCE_FRACTION) < rect.width())
+            && ((Math.abs(y - mFocalPointY) * FOCAL_POINT_TOLERANCE_FRACTION) < rect.height());
+    
+    }
+    
+    private int indexOf(Object obj) {
+    
+        if (!(obj instanceof TileRenderRunnable))
+            return -1;
+        
+        int index = ((TileRenderRunnable) obj).getQueueIndex();
+        
+        if ((index >= 0) && (index < mSize) && (mHeap[index] == obj))
+            return index;
+        
+        return -1;
+    
+    }
+    
+    @Override
+    public Iterator<Runnable> iterator() {
+    
+        mLock.lock();
+        
+        try {
+            return new SnapshotIterator(Arrays.copyOf(mHeap, mSize));
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    /**
+     * Only TileRenderRunnable instances may be queued.
+     *
+     * @param runnable The TileRenderRunnable to queue.
+     *
+     * @return Always true, the queue is unbounded.
+     */
+    @Override
+    public boolean offer(Runnable runnable) {
+    
+        if (!(runnable instanceof TileRenderRunnable))
+            throw new IllegalArgumentException("Only TileRenderRunnable instances can be queued");
+        
+        TileRenderRunnable tileRenderRunnable = (TileRenderRunnable) runnable;
+        
+        mLock.lock();
+        
+        try {
+        
+            if (mSize == mHeap.length)
+                grow();
+            
+            tileRenderRunnable.updatePriority(mFocalPointX, mFocalPointY);
+            
+            mHeap[mSize] = tileRenderRunnable;
+            tileRenderRunnable.setQueueIndex(mSize);
+            
+            siftUp(mSize++);
+            mNotEmpty.signal();
+        
+        } finally {
+            mLock.unlock();
+        }
+        
+        return true;
+    
+    }
+    
+    @Override
+    public boolean offer(Runnable runnable, long timeout, TimeUnit unit) {
+        return offer(runnable);
+    }
+    
+    @Override
+    public Runnable peek() {
+    
+        mLock.lock();
+        
+        try {
+            return ((mSize == 0) ? null : mHeap[0]);
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    @Override
+    public Runnable poll() {
+    
+        mLock.lock();
+        
+        try {
+            return ((mSize == 0) ? null : removeAt(0));
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+    
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        
+        try {
+        
+            while (mSize == 0) {
+            
+                if (nanos <= 0)
+                    return null;
+                
+                nanos = mNotEmpty.awaitNanos(nanos);
+            
+            }
+            
+            return removeAt(0);
+        
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    @Override
+    public void put(Runnable runnable) {
+        offer(runnable);
+    }
+    
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+    
+    @Override
+    public boolean remove(Object obj) {
+    
+        mLock.lock();
+        
+        try {
+        
+            int index = indexOf(obj);
+            
+            if (index == -1)
+                return false;
+            
+            removeAt(index);
+            return true;
+        
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    // must be called with the lock held
+    private TileRenderRunnable removeAt(int index) {
+    
+        TileRenderRunnable removed = mHeap[index];
+        removed.setQueueIndex(-1);
+        
+        int last = --mSize;
+        
+        if (index != last) {
+        
+            TileRenderRunnable moved = mHeap[last];
+            
+            mHeap[index] = moved;
+            moved.setQueueIndex(index);
+            
+            siftDown(index);
+            
+            if (mHeap[index] == moved)
+                siftUp(index);
+        
+        }
+        
+        mHeap[last] = null;
+        return removed;
+    
+    }
+    
+    /**
+     * Removes every queued runnable whose tile is not part of the render set, in a single pass.
+     *
+     * @param renderSet      The tiles that should stay queued.
+     * @param retainPrefetch True to keep the runnables that are not part of a render batch (prefetch work),
+     *                       whatever their tile.
+     * @param removed        Receives the runnables that were removed.
+     */
+    void retainTiles(TileSet renderSet, boolean retainPrefetch, List<TileRenderRunnable> removed) {
+    
+        mLock.lock();
+        
+        try {
+        
+            int kept = 0;
+            
+            for (int i = 0; i < mSize; ++i) {
+            
+                TileRenderRunnable runnable = mHeap[i];
+                Tile tile = runnable.getTile();
+                
+                if ((tile != null) && ((retainPrefetch && (runnable.getGeneration() < 0)) || renderSet.contains(tile))) {
+                
+                    mHeap[kept] = runnable;
+                    runnable.setQueueIndex(kept++);
+                
+                } else {
+                
+                    runnable.setQueueIndex(-1);
+                    removed.add(runnable);
+                
+                }
+            
+            }
+            
+            for (int i = kept; i < mSize; ++i)
+                mHeap[i] = null;
+            
+            mSize = kept;
+            heapify();
+        
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    /**
+     * Moves the point tiles are prioritized around and re-orders everything already queued.  A move of less
+     * than a quarter of a tile (measured by the most urgent tile queued) is ignored, the old point is kept so
+     * the runnables queued later are scored consistently with those already queued.
+     *
+     * @param x The horizontal position of the focal point, in unscaled pixels.
+     * @param y The vertical position of the focal point, in unscaled pixels.
+     */
+    void setFocalPoint(float x, float y) {
+    
+        mLock.lock();
+        
+        try {
+        
+            if ((x == mFocalPointX) && (y == mFocalPointY))
+                return;
+            
+            if ((mSize > 0) && isNearFocalPoint(x, y))
+                return;
+            
+            mFocalPointX = x;
+            mFocalPointY = y;
+            
+            for (int i = 0; i < mSize; ++i)
+                mHeap[i].updatePriority(x, y);
+            
+            heapify();
+        
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    private void siftDown(int index) {
+    
+        TileRenderRunnable runnable = mHeap[index];
+        int half = (mSize >>> 1);
+        
+        while (index < half) {
+        
+            int child = ((index << 1) + 1);
+            int right = (child + 1);
+            
+            if ((right < mSize) && mHeap[right].precedes(mHeap[child]))
+                child = right;
+            
+            if (!mHeap[child].precedes(runnable))
+                break;
+            
+            mHeap[index] = mHeap[child];
+            mHeap[index].setQueueIndex(index);
+            
+            index = child;
+        
+        }
+        
+        mHeap[index] = runnable;
+        runnable.setQueueIndex(index);
+    
+    }
+    
+    private void siftUp(int index) {
+    
+        TileRenderRunnable runnable = mHeap[index];
+        
+        while (index > 0) {
+        
+            int parent = ((index - 1) >>> 1);
+            
+            if (!runnable.precedes(mHeap[parent]))
+                break;
+            
+            mHeap[index] = mHeap[parent];
+            mHeap[index].setQueueIndex(index);
+            
+            index = parent;
+        
+        }
+        
+        mHeap[index] = runnable;
+        runnable.setQueueIndex(index);
+    
+    }
+    
+    @Override
+    public int size() {
+    
+        mLock.lock();
+        
+        try {
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    @Override
+    public Runnable take() throws InterruptedException {
+    
+        mLock.lockInterruptibly();
+        
+        try {
+        
+            while (mSize == 0)
+                mNotEmpty.await();
+            
+            return removeAt(0);
+        
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    @Override
+    public Object[] toArray() {
+    
+        mLock.lock();
+        
+        try {
+            return Arrays.copyOf(mHeap, mSize, Object[].class);
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    private class SnapshotIterator implements Iterator<Runnable> {
+    
+        private int mCursor, mLast = -1;
+        private final TileRenderRunnable[] mSnapshot;
+        
+        SnapshotIterator(TileRenderRunnable[] snapshot) {
+            mSnapshot = snapshot;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return (mCursor < mSnapshot.length);
+        }
+        
+        @Override
+        public Runnable next() {
+        
+            if (mCursor >= mSnapshot.length)
+                throw new NoSuchElementException();
+            
+            mLast = mCursor;
+            return mSnapshot[mCursor++];
+        
+        }
+        
+        @Override
+        public void remove() {
+        
+            if (mLast < 0)
+                throw new IllegalStateException();
+            
+            TileRenderQueue.this.remove(mSnapshot[mLast]);
+            mLast = -1;
+        
+        }
+    
+    }
+
+}
\ No newline at end of file
@@ -1,21 +1,41 @@
 package robertapengelly.support.tileview.tile;
 
-import  android.os.Handler;
-import  android.os.Message;
-import  android.os.Process;
+import  android.graphics.Bitmap;
+import  android.graphics.Rect;
+import  android.support.annotation.IntDef;
 
+import  java.lang.annotation.Retention;
+import  java.lang.annotation.RetentionPolicy;
 import  java.lang.ref.WeakReference;
 
+import  robertapengelly.support.tileview.graphics.CancellationToken;
+
 class TileRenderRunnable implements Runnable {
 
+    public static final int PRIORITY_HIGH   = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW    = 2;
+    
+    private volatile Bitmap mBitmap;
     private volatile Thread mThread;
     
-    private boolean mCancelled = false, mComplete = false;
+    private volatile boolean mCancelled = false;
+    
+    private boolean mComplete = false;
+    private float mPriority;
+    private long mGeneration = -1, mTileKey;
+    private int mPriorityClass = PRIORITY_NORMAL, mQueueIndex = -1, mSampleSize = 1;
     
+    private CancellationToken mCancellationToken = new CancellationToken();
     private Throwable mThrowable;
     private WeakReference<Tile> mTileWeakReference;
     private WeakReference<TileRenderPoolExecutor> mTileRenderPoolExecutorWeakReference;
     
+    /** @hide **/
+    @IntDef({PRIORITY_HIGH, PRIORITY_NORMAL, PRIORITY_LOW})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Priority {}
+    
     public boolean cancel(boolean interrupt) {
     
         if (interrupt && (mThread != null))
@@ -24,6 +44,9 @@ class TileRenderRunnable implements Runnable {
         boolean cancelled = mCancelled;
         mCancelled = true;
         
+        // lets a provider that supports it abandon the decode part-way
+        mCancellationToken.cancel();
+        
         if (mTileRenderPoolExecutorWeakReference  != null) {
         
             TileRenderPoolExecutor tileRenderPoolExecutor = mTileRenderPoolExecutorWeakReference.get();
@@ -37,10 +60,52 @@ class TileRenderRunnable implements Runnable {
     
     }
     
+    /**
+     * Returns the bitmap the runnable decoded.  It belongs to nobody until the UI thread either publishes it
+     * to the tile or releases it.
+     *
+     * @return The decoded bitmap, or null if the decode failed.
+     */
+    Bitmap getBitmap() {
+        return mBitmap;
+    }
+    
+    /**
+     * Returns the render generation the runnable counts towards.
+     *
+     * @return The render generation, or -1 if the runnable is not part of a render batch (e.g., prefetch work).
+     */
+    long getGeneration() {
+        return mGeneration;
+    }
+    
+    int getQueueIndex() {
+        return mQueueIndex;
+    }
+    
+    /**
+     * Returns the factor the tile is decoded smaller than its full size by.
+     *
+     * @return The sample size, 1 to decode the tile in full.
+     */
+    int getSampleSize() {
+        return mSampleSize;
+    }
+    
     public Throwable getThrowable() {
         return mThrowable;
     }
     
+    /**
+     * Returns the key the tile had when the runnable was created; if the tile's key no longer matches, the
+     * tile has been reused for another cell since.
+     *
+     * @return The tile's original key.
+     */
+    long getTileKey() {
+        return mTileKey;
+    }
+    
     public Tile getTile() {
     
         if (mTileWeakReference != null)
@@ -50,21 +115,55 @@ class TileRenderRunnable implements Runnable {
     
     }
     
+    TileRenderPoolExecutor getTileRenderPoolExecutor() {
+    
+        if (mTileRenderPoolExecutorWeakReference != null)
+            return mTileRenderPoolExecutorWeakReference.get();
+        
+        return null;
+    
+    }
+    
     public boolean isCancelled() {
         return mCancelled;
     }
     
+    /**
+     * Returns true while a render thread is working on the tile.  mThread is written before mCancelled is
+     * read and both are volatile, so a runnable cancelled while this returns false never reads its tile.
+     *
+     * @return True while a render thread is working on the tile.
+     */
+    boolean isRunning() {
+        return (mThread != null);
+    }
+    
     public boolean isDone() {
         return mComplete;
     }
     
+    /**
+     * Returns true if this runnable should be decoded before the other; the priority class is compared
+     * first, then the squared distance from the tile to the render focal point.
+     *
+     * @param other The runnable to compare against.
+     *
+     * @return True if this runnable should be decoded before the other.
+     */
+    boolean precedes(TileRenderRunnable other) {
+    
+        if (mPriorityClass != other.mPriorityClass)
+            return (mPriorityClass < other.mPriorityClass);
+        
+        return (mPriority < other.mPriority);
+    
+    }
+    
     public @TileRenderHandler.Status int renderTile() {
     
         if (mCancelled)
             return TileRenderHandler.RENDER_INCOMPLETE;
         
-        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        
         if (mThread.isInterrupted())
             return TileRenderHandler.RENDER_INCOMPLETE;
         
@@ -83,8 +182,13 @@ class TileRenderRunnable implements Runnable {
         if (tileCanvasViewGroup == null)
             return TileRenderHandler.RENDER_INCOMPLETE;
         
+        Bitmap bitmap;
+        
         try {
-            tile.generateBitmap(tileCanvasViewGroup.getContext(), tileCanvasViewGroup.getBitmapProvider());
+            bitmap = tile.generateBitmap(tileCanvasViewGroup, mSampleSize, mCancellationToken);
+        } catch (InterruptedException ex) {
+            // cancelled while waiting for an equal tile that was already being decoded
+            return TileRenderHandler.RENDER_INCOMPLETE;
         } catch (Throwable throwable) {
         
             mThrowable = throwable;
@@ -92,13 +196,19 @@ class TileRenderRunnable implements Runnable {
         
         }
         
-        if (mCancelled || mThread.isInterrupted() || (tile.getBitmap() == null)) {
+        if (mCancelled || mThread.isInterrupted()) {
         
-            tile.reset();
-            return TileRenderHandler.RENDER_ERROR;
+            // the tile left the viewport while decoding, keep the result around in case it comes back
+            tile.releaseBitmap(bitmap, mSampleSize, tileCanvasViewGroup.getTileMemoryCache(),
+                tileCanvasViewGroup.getBitmapPool());
+            return TileRenderHandler.RENDER_INCOMPLETE;
         
         }
         
+        if (bitmap == null)
+            return TileRenderHandler.RENDER_ERROR;
+        
+        mBitmap = bitmap;
         return TileRenderHandler.RENDER_COMPLETE;
     
     }
@@ -108,7 +218,14 @@ class TileRenderRunnable implements Runnable {
     
         mThread = Thread.currentThread();
         
-        int status = renderTile();
+        int status;
+        
+        try {
+            status = renderTile();
+        } finally {
+            // the thread moves on to other work, so cancelling this runnable must no longer interrupt it
+            mThread = null;
+        }
         
         if (status == TileRenderHandler.RENDER_INCOMPLETE)
             return;
@@ -131,26 +248,56 @@ class TileRenderRunnable implements Runnable {
         if (tile == null)
             return;
         
-        Handler handler = tileRenderPoolExecutor.getHandler();
-        
-        if (handler == null)
-            return;
-        
-        // need to stamp time now, since it'll be drawn before the handler posts
-        tile.setTransitionDuration(tileCanvasViewGroup.getTransitionDuration());
-        tile.setTransitionsEnabled(tileCanvasViewGroup.getTransitionsEnabled());
-        
-        Message message = handler.obtainMessage(status, this);
-        message.sendToTarget();
+        // tiles that finish together are handed to the canvas together, on the next frame
+        tileRenderPoolExecutor.getTileRenderHandler().offer(this);
+    
+    }
+    
+    void setGeneration(long generation) {
+        mGeneration = generation;
+    }
+    
+    void setPriorityClass(@Priority int priorityClass) {
+        mPriorityClass = priorityClass;
+    }
+    
+    void setQueueIndex(int queueIndex) {
+        mQueueIndex = queueIndex;
+    }
     
+    void setSampleSize(int sampleSize) {
+        mSampleSize = sampleSize;
     }
     
     public void setTile(Tile tile) {
+    
+        mTileKey = tile.getKey();
         mTileWeakReference = new WeakReference<>(tile);
+    
     }
     
     public void setTileRenderPoolExecutor(TileRenderPoolExecutor tileRenderPoolExecutor) {
         mTileRenderPoolExecutorWeakReference = new WeakReference<>(tileRenderPoolExecutor);
     }
+    
+    void updatePriority(float focalPointX, float focalPointY) {
+    
+        Tile tile = getTile();
+        
+        if (tile == null) {
+        
+            mPriority = Float.MAX_VALUE;
+            return;
+        
+        }
+        
+        Rect rect = tile.getRelativeRect();
+        
+        float distanceX = (rect.centerX() - focalPointX);
+        float distanceY = (rect.centerY() - focalPointY);
+        
+        mPriority = ((distanceX * distanceX) + (distanceY * distanceY));
+    
+    }
 
 }
\ No newline at end of file
@@ -0,0 +1,420 @@
+package robertapengelly.support.tileview.tile;
+
+import  android.annotation.TargetApi;
+import  android.os.Build;
+import  android.os.Process;
+
+import  java.util.ArrayList;
+import  java.util.concurrent.Executor;
+import  java.util.concurrent.ExecutorService;
+import  java.util.concurrent.ForkJoinPool;
+import  java.util.concurrent.ForkJoinWorkerThread;
+import  java.util.concurrent.RejectedExecutionException;
+import  java.util.concurrent.TimeUnit;
+import  java.util.concurrent.atomic.AtomicInteger;
+import  java.util.concurrent.locks.Condition;
+import  java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs tile decodes on behalf of one or more TileViews.  Each TileView keeps its own queue, ordered around
+ * its own focal point, and the scheduler takes work from those queues in turn so that a busy TileView can't
+ * starve the others.  Sharing one scheduler between the TileViews on a screen (e.g., a map and a list of
+ * thumbnails) keeps them from oversubscribing the CPU with a thread pool each.
+ *
+ * By default up to a fixed number of named threads are started as there is work to do, and a thread that has
+ * been idle for the keep-alive time exits; it is started again once there is more work.  Alternatively
+ * work can be handed to any Executor, including a work-stealing ForkJoinPool from newWorkStealingScheduler;
+ * in that case the Executor's threads keep whatever priority it gives them.
+ */
+public class TileRenderScheduler {
+
+    private static final int AVAILABLE_PROCESSORS = Runtime.getRuntime().availableProcessors();
+    private static final long DEFAULT_KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    
+    public static final int DEFAULT_THREAD_COUNT = Math.max(1, (AVAILABLE_PROCESSORS >> 1));
+    public static final int DEFAULT_THREAD_PRIORITY = Process.THREAD_PRIORITY_BACKGROUND;
+    public static final String DEFAULT_THREAD_NAME = "TileRender";
+    
+    private boolean mOwnsExecutor;
+    private volatile boolean mShutdown;
+    private int mIdleThreadCount, mLiveThreadCount, mNextClientIndex, mThreadCount, mThreadNumber, mThreadPriority;
+    private long mKeepAliveTime = DEFAULT_KEEP_ALIVE_NANOS;
+    
+    private Executor mExecutor;
+    private String mThreadName;
+    
+    private final ArrayList<TileRenderPoolExecutor> mClients = new ArrayList<>();
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mWorkAvailable = mLock.newCondition();
+    
+    // handed to the Executor once per queued runnable, runs whichever runnable is most deserving at the time
+    private final Runnable mDrainRunnable = new Runnable() {
+    
+        @Override
+        public void run() {
+        
+            TileRenderRunnable runnable;
+            mLock.lock();
+            
+            try {
+                runnable = (mShutdown ? null : poll());
+            } finally {
+                mLock.unlock();
+            }
+            
+            if (runnable != null)
+                execute(runnable);
+        
+        }
+    
+    };
+    
+    public TileRenderScheduler() {
+        this(DEFAULT_THREAD_COUNT, DEFAULT_THREAD_PRIORITY, DEFAULT_THREAD_NAME);
+    }
+    
+    /**
+     * @param threadCount    The number of threads decoding tiles.
+     * @param threadPriority The priority of those threads, as passed to Process.setThreadPriority.
+     * @param threadName     The prefix of the thread names, which are numbered.
+     */
+    public TileRenderScheduler(int threadCount, int threadPriority, String threadName) {
+    
+        mThreadCount = Math.max(1, threadCount);
+        mThreadName = threadName;
+        mThreadPriority = threadPriority;
+    
+    }
+    
+    /**
+     * Runs tile decodes on an existing Executor rather than threads of the scheduler's own.  The Executor is
+     * not shut down by shutdown.
+     *
+     * @param executor The Executor to run tile decodes on.
+     */
+    public TileRenderScheduler(Executor executor) {
+        mExecutor = executor;
+    }
+    
+    private void execute(TileRenderRunnable runnable) {
+    
+        TileRenderPoolExecutor tileRenderPoolExecutor = runnable.getTileRenderPoolExecutor();
+        
+        if (tileRenderPoolExecutor == null)
+            return;
+        
+        // a cancelled runnable interrupts its thread, make sure that doesn't leak into this one
+        Thread.interrupted();
+        
+        Throwable throwable = null;
+        
+        try {
+            runnable.run();
+        } catch (RuntimeException ex) {
+            throwable = ex;
+        } finally {
+            tileRenderPoolExecutor.afterExecute(runnable, throwable);
+        }
+    
+    }
+    
+    /**
+     * Returns a scheduler that runs tile decodes on a work-stealing ForkJoinPool, which is shut down along
+     * with the scheduler.  ForkJoinPool is available from Lollipop; on older devices a scheduler with
+     * threads of its own is returned instead.
+     *
+     * @param parallelism    The number of threads decoding tiles.
+     * @param threadPriority The priority of those threads, as passed to Process.setThreadPriority.
+     * @param threadName     The prefix of the thread names, which are numbered.
+     *
+     * @return A new TileRenderScheduler.
+     */
+    public static TileRenderScheduler newWorkStealingScheduler(int parallelism, int threadPriority, String threadName) {
+    
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return new TileRenderScheduler(parallelism, threadPriority, threadName);
+        
+        TileRenderScheduler tileRenderScheduler = new TileRenderScheduler(
+            newForkJoinPool(Math.max(1, parallelism), threadPriority, threadName));
+        
+        tileRenderScheduler.mOwnsExecutor = true;
+        return tileRenderScheduler;
+    
+    }
+    
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static ForkJoinPool newForkJoinPool(int parallelism, final int threadPriority, final String threadName) {
+    
+        final AtomicInteger threadNumber = new AtomicInteger();
+        
+        ForkJoinPool.ForkJoinWorkerThreadFactory factory = new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+        
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            
+                ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                
+                    @Override
+                    protected void onStart() {
+                        super.onStart();
+                        
+                        Process.setThreadPriority(threadPriority);
+                    
+                    }
+                
+                };
+                
+                thread.setName(threadName + "-" + threadNumber.incrementAndGet());
+                return thread;
+            
+            }
+        
+        };
+        
+        // async mode hands out submissions in FIFO order, which suits independent tasks
+        return new ForkJoinPool(parallelism, factory, null, true);
+    
+    }
+    
+    /**
+     * Returns how long a thread of the scheduler's own waits for work before it exits.
+     *
+     * @param unit The unit of the time returned.
+     *
+     * @return The keep-alive time.
+     */
+    public long getKeepAliveTime(TimeUnit unit) {
+    
+        mLock.lock();
+        
+        try {
+            return unit.convert(mKeepAliveTime, TimeUnit.NANOSECONDS);
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    // must be called with the lock held
+    private TileRenderRunnable poll() {
+    
+        int clientCount = mClients.size();
+        
+        for (int i = 0; i < clientCount; ++i) {
+        
+            int index = ((mNextClientIndex + i) % clientCount);
+            TileRenderRunnable runnable = mClients.get(index).poll();
+            
+            if (runnable != null) {
+            
+                // the next runnable comes from the next TileView in turn
+                mNextClientIndex = ((index + 1) % clientCount);
+                return runnable;
+            
+            }
+        
+        }
+        
+        return null;
+    
+    }
+    
+    void register(TileRenderPoolExecutor tileRenderPoolExecutor) {
+    
+        mLock.lock();
+        
+        try {
+        
+            if (!mClients.contains(tileRenderPoolExecutor))
+                mClients.add(tileRenderPoolExecutor);
+        
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    private void reject(TileRenderRunnable runnable) {
+    
+        TileRenderPoolExecutor tileRenderPoolExecutor = runnable.getTileRenderPoolExecutor();
+        
+        if (tileRenderPoolExecutor != null)
+            tileRenderPoolExecutor.reject(runnable);
+    
+    }
+    
+    /**
+     * Sets how long a thread of the scheduler's own waits for work before it exits.  Has no effect on a
+     * scheduler that runs on an Executor.
+     *
+     * @param time The keep-alive time.
+     * @param unit The unit of the time supplied.
+     */
+    public void setKeepAliveTime(long time, TimeUnit unit) {
+    
+        if (time < 0)
+            throw new IllegalArgumentException("The keep-alive time can't be negative");
+        
+        mLock.lock();
+        
+        try {
+            mKeepAliveTime = unit.toNanos(time);
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    /**
+     * Stops the scheduler once the decodes in progress finish.  Work queued afterwards is never run.
+     */
+    public void shutdown() {
+    
+        mLock.lock();
+        
+        try {
+        
+            mShutdown = true;
+            mWorkAvailable.signalAll();
+        
+        } finally {
+            mLock.unlock();
+        }
+        
+        if (mOwnsExecutor && (mExecutor instanceof ExecutorService))
+            ((ExecutorService) mExecutor).shutdownNow();
+    
+    }
+    
+    /**
+     * Tells the scheduler that runnables were queued.
+     *
+     * @param count The number of runnables queued.
+     */
+    void signalWork(int count) {
+    
+        if (mExecutor != null) {
+        
+            try {
+            
+                for (int i = 0; i < count; ++i)
+                    mExecutor.execute(mDrainRunnable);
+            
+            } catch (RejectedExecutionException ex) {
+                // the executor has been shut down, the work is abandoned
+            }
+            
+            return;
+        
+        }
+        
+        mLock.lock();
+        
+        try {
+        
+            if (mShutdown)
+                return;
+            
+            // idle threads take the work first, threads that exited while idle are started again as needed
+            int threadsNeeded = Math.min((count - mIdleThreadCount), (mThreadCount - mLiveThreadCount));
+            
+            for (int i = 0; i < threadsNeeded; ++i)
+                startThread();
+            
+            for (int i = 0; i < count; ++i)
+                mWorkAvailable.signal();
+        
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    // must be called with the lock held
+    private void startThread() {
+    
+        Thread thread = new Thread(new Worker(), (mThreadName + "-" + (++mThreadNumber)));
+        thread.setDaemon(true);
+        
+        ++mLiveThreadCount;
+        thread.start();
+    
+    }
+    
+    void unregister(TileRenderPoolExecutor tileRenderPoolExecutor) {
+    
+        mLock.lock();
+        
+        try {
+        
+            mClients.remove(tileRenderPoolExecutor);
+            mNextClientIndex = 0;
+        
+        } finally {
+            mLock.unlock();
+        }
+    
+    }
+    
+    private class Worker implements Runnable {
+    
+        @Override
+        public void run() {
+        
+            Process.setThreadPriority(mThreadPriority);
+            
+            while (true) {
+            
+                TileRenderRunnable runnable = null;
+                mLock.lock();
+                
+                try {
+                
+                    long nanos = mKeepAliveTime;
+                    
+                    while (!mShutdown && ((runnable = poll()) == null)) {
+                    
+                        // the thread has been idle for the keep-alive time, signalWork starts another if needed
+                        if (nanos <= 0) {
+                        
+                            --mLiveThreadCount;
+                            return;
+                        
+                        }
+                        
+                        ++mIdleThreadCount;
+                        
+                        try {
+                            nanos = mWorkAvailable.awaitNanos(nanos);
+                        } finally {
+                            --mIdleThreadCount;
+                        }
+                    
+                    }
+                
+                } catch (InterruptedException ex) {
+                    // a cancelled runnable interrupted this thread after it finished, just carry on
+                } finally {
+                    mLock.unlock();
+                }
+                
+                if (mShutdown) {
+                
+                    // the runnable has left its queue, so only this thread can release its batch and tile
+                    if (runnable != null)
+                        reject(runnable);
+                    
+                    return;
+                
+                }
+                
+                if (runnable != null)
+                    execute(runnable);
+            
+            }
+        
+        }
+    
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,264 @@
+package robertapengelly.support.tileview.tile;
+
+import  java.util.Arrays;
+
+/**
+ * A set of tiles for the render loop.  Tiles are keyed by Tile.getKey, a long packed from the tile's detail
+ * level, row and column, so membership is tested without calling hashCode or equals and without boxing;
+ * lookups use open addressing with linear probing over primitive arrays.
+ *
+ * The tiles themselves are kept in a dense array, so the set can be walked by index without an Iterator.
+ * Removing a tile moves the last tile into its place, so walk backwards when calling removeAt as you go:
+ *
+ *     for (int i = (tiles.size() - 1); i >= 0; --i)
+ *         if (shouldRemove(tiles.get(i)))
+ *             tiles.removeAt(i);
+ */
+public class TileSet {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    
+    private int mSize;
+    
+    // the table is kept at most half full; a slot holds the index of its tile plus one, or 0 if it is empty
+    private int[] mSlots;
+    private long[] mKeys;
+    private Tile[] mTiles;
+    
+    public TileSet() {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    /** @param capacity The number of tiles the set can hold before it has to grow. */
+    public TileSet(int capacity) {
+    
+        int tableCapacity = DEFAULT_CAPACITY;
+        
+        while (tableCapacity < (capacity << 1))
+            tableCapacity <<= 1;
+        
+        mKeys = new long[tableCapacity];
+        mSlots = new int[tableCapacity];
+        mTiles = new Tile[tableCapacity >> 1];
+    
+    }
+    
+    /**
+     * Adds a tile, unless an equal tile is already part of the set, in which case that tile is kept.
+     *
+     * @param tile The tile to add.
+     *
+     * @return True if the tile was added.
+     */
+    public boolean add(Tile tile) {
+    
+        long key = tile.getKey();
+        
+        if (findSlot(key) >= 0)
+            return false;
+        
+        if (mSize == mTiles.length)
+            resize(mKeys.length << 1);
+        
+        mTiles[mSize] = tile;
+        insert(key, ++mSize);
+        
+        return true;
+    
+    }
+    
+    /**
+     * Adds every tile of another set that isn't already part of this one.
+     *
+     * @param tiles The tiles to add.
+     *
+     * @return True if any tile was added.
+     */
+    public boolean addAll(TileSet tiles) {
+    
+        boolean changed = false;
+        
+        for (int i = 0; i < tiles.mSize; ++i)
+            changed |= add(tiles.mTiles[i]);
+        
+        return changed;
+    
+    }
+    
+    public void clear() {
+    
+        if (mSize == 0)
+            return;
+        
+        Arrays.fill(mSlots, 0);
+        Arrays.fill(mTiles, 0, mSize, null);
+        
+        mSize = 0;
+    
+    }
+    
+    public boolean contains(Tile tile) {
+        return (findSlot(tile.getKey()) >= 0);
+    }
+    
+    private int findSlot(long key) {
+    
+        int mask = (mKeys.length - 1);
+        
+        for (int slot = (hash(key) & mask); mSlots[slot] != 0; slot = ((slot + 1) & mask))
+            if (mKeys[slot] == key)
+                return slot;
+        
+        return -1;
+    
+    }
+    
+    /**
+     * Returns the tile at the index supplied; indices run from 0 to size() - 1.
+     *
+     * @param index The index of the tile.
+     *
+     * @return The tile at the index supplied.
+     */
+    public Tile get(int index) {
+        return mTiles[index];
+    }
+    
+    /**
+     * Returns the tile with the key supplied.
+     *
+     * @param key The key of the tile, as returned by Tile.getKey.
+     *
+     * @return The tile with the key supplied, or null if it isn't part of the set.
+     */
+    public Tile getByKey(long key) {
+    
+        int slot = findSlot(key);
+        return ((slot >= 0) ? mTiles[mSlots[slot] - 1] : null);
+    
+    }
+    
+    private static int hash(long key) {
+    
+        // spreads the packed row and column over the high bits before they are folded down
+        long hash = (key * 0x9E3779B97F4A7C15L);
+        return (int) (hash ^ (hash >>> 32));
+    
+    }
+    
+    private void insert(long key, int slotValue) {
+    
+        int mask = (mKeys.length - 1);
+        int slot = (hash(key) & mask);
+        
+        while (mSlots[slot] != 0)
+            slot = ((slot + 1) & mask);
+        
+        mKeys[slot] = key;
+        mSlots[slot] = slotValue;
+    
+    }
+    
+    public boolean isEmpty() {
+        return (mSize == 0);
+    }
+    
+    public boolean remove(Tile tile) {
+    
+        int slot = findSlot(tile.getKey());
+        
+        if (slot < 0)
+            return false;
+        
+        removeAt(mSlots[slot] - 1);
+        return true;
+    
+    }
+    
+    /**
+     * Removes every tile that is part of another set.
+     *
+     * @param tiles The tiles to remove.
+     *
+     * @return True if any tile was removed.
+     */
+    public boolean removeAll(TileSet tiles) {
+    
+        boolean changed = false;
+        
+        for (int i = 0; i < tiles.mSize; ++i)
+            changed |= remove(tiles.mTiles[i]);
+        
+        return changed;
+    
+    }
+    
+    /**
+     * Removes the tile at the index supplied.  The last tile takes its place.
+     *
+     * @param index The index of the tile to remove.
+     *
+     * @return The tile removed.
+     */
+    public Tile removeAt(int index) {
+    
+        Tile tile = mTiles[index];
+        removeSlot(findSlot(tile.getKey()));
+        
+        int last = --mSize;
+        
+        if (index != last) {
+        
+            Tile moved = mTiles[last];
+            
+            mTiles[index] = moved;
+            mSlots[findSlot(moved.getKey())] = (index + 1);
+        
+        }
+        
+        mTiles[last] = null;
+        return tile;
+    
+    }
+    
+    private void removeSlot(int slot) {
+    
+        int mask = (mKeys.length - 1);
+        int hole = slot;
+        
+        // shift later entries of the probe sequence back, so lookups never stop short at the hole
+        for (int next = ((slot + 1) & mask); mSlots[next] != 0; next = ((next + 1) & mask)) {
+        
+            int home = (hash(mKeys[next]) & mask);
+            
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+            
+                mKeys[hole] = mKeys[next];
+                mSlots[hole] = mSlots[next];
+                
+                hole = next;
+            
+            }
+        
+        }
+        
+        mSlots[hole] = 0;
+    
+    }
+    
+    private void resize(int tableCapacity) {
+    
+        mKeys = new long[tableCapacity];
+        mSlots = new int[tableCapacity];
+        mTiles = Arrays.copyOf(mTiles, (tableCapacity >> 1));
+        
+        for (int i = 0; i < mSize; ++i)
+            insert(mTiles[i].getKey(), (i + 1));
+    
+    }
+    
+    public int size() {
+        return mSize;
+    }
+
+}
\ No newline at end of file
@@ -14,7 +14,7 @@ import  android.widget.Scroller;
 import  java.lang.annotation.Retention;
 import  java.lang.annotation.RetentionPolicy;
 import  java.lang.ref.WeakReference;
-import  java.util.HashSet;
+import  java.util.ArrayList;
 
 import  robertapengelly.support.animation.Animator;
 import  robertapengelly.support.animation.ValueAnimator;
@@ -38,14 +38,15 @@ public class ZoomPanLayout extends ViewGroup implements GestureDetector.OnDouble
     public static final String MINIMUM_SCALE_MODE_NONE  = "minimum_scale_mode_none";
     
     private boolean mIsDragging, mIsFlinging, mIsScaling, mIsSliding, mShouldLoopScale = true;
-    private float mEffectiveMinScale = 0, mMaxScale = 1, mMinScale = 0, mScale = 1;
+    private float mEffectiveMinScale = 0, mMaxScale = 1, mMinScale = 0, mScale = 1, mScaleVelocity;
     private int mAnimationDuration = DEFAULT_ZOOM_PAN_ANIMATION_DURATION;
     private int mBaseHeight, mBaseWidth, mOffsetX, mOffsetY, mScaledHeight, mScaledWidth;
     
     private String mMinimumScaleMode = MINIMUM_SCALE_MODE_FILL;
     
     private GestureDetector mGestureDetector;
-    private HashSet<ZoomPanListener> mListeners = new HashSet<>();
+    // a list rather than a set so broadcasting, which happens every frame of a gesture, needs no iterator
+    private ArrayList<ZoomPanListener> mListeners = new ArrayList<>();
     private ScaleGestureDetector mScaleGestureDetector;
     private Scroller mScroller;
     private TouchUpGestureDetector mTouchUpGestureDetector;
@@ -86,111 +87,111 @@ public class ZoomPanLayout extends ViewGroup implements GestureDetector.OnDouble
      * @return True when the listener set did not already contain the listener, false otherwise.
      */
     public boolean addZoomPanListener(ZoomPanListener listener) {
-        return mListeners.add(listener);
+        return (!mListeners.contains(listener) && mListeners.add(listener));
     }
     
     private void broadcastDragBegin() {
     
-        for (ZoomPanListener listener : mListeners)
-            listener.onPanBegin(getScrollX(), getScrollY(), ZoomPanListener.ORIGINATION_DRAG);
+        for (int i = 0; i < mListeners.size(); ++i)
+            mListeners.get(i).onPanBegin(getScrollX(), getScrollY(), ZoomPanListener.ORIGINATION_DRAG);
     
     }
     
     private void broadcastDragEnd() {
     
-        for (ZoomPanListener listener : mListeners)
-            listener.onPanEnd(getScrollX(), getScrollY(), ZoomPanListener.ORIGINATION_DRAG);
+        for (int i = 0; i < mListeners.size(); ++i)
+            mListeners.get(i).onPanEnd(getScrollX(), getScrollY(), ZoomPanListener.ORIGINATION_DRAG);
     
     }
     
     private void broadcastDragUpdate() {
     
-        for (ZoomPanListener listener : mListeners)
-            listener.onPanUpdate(getScrollX(), getScrollY(), ZoomPanListener.ORIGINATION_DRAG);
+        for (int i = 0; i < mListeners.size(); ++i)
+            mListeners.get(i).onPanUpdate(getScrollX(), getScrollY(), ZoomPanListener.ORIGINATION_DRAG);
     
     }
     
     private void broadcastFlingBegin() {
     
-        for (ZoomPanListener listener : mListeners)
-            listener.onPanBegin(mScroller.getStartX(), mScroller.getStartY(), ZoomPanListener.ORIGINATION_FLING);
+        for (int i = 0; i < mListeners.size(); ++i)
+            mListeners.get(i).onPanBegin(mScroller.getStartX(), mScroller.getStartY(), ZoomPanListener.ORIGINATION_FLING);
     
     }
     
     private void broadcastFlingEnd() {
     
-        for (ZoomPanListener listener : mListeners)
-            listener.onPanBegin(mScroller.getFinalX(), mScroller.getFinalY(), ZoomPanListener.ORIGINATION_FLING);
+        for (int i = 0; i < mListeners.size(); ++i)
+            mListeners.get(i).onPanBegin(mScroller.getFinalX(), mScroller.getFinalY(), ZoomPanListener.ORIGINATION_FLING);
     
     }
     
     private void broadcastFlingUpdate() {
     
-        for (ZoomPanListener listener : mListeners)
-            listener.onPanBegin(mScroller.getCurrX(), mScroller.getCurrY(), ZoomPanListener.ORIGINATION_FLING);
+        for (int i = 0; i < mListeners.size(); ++i)
+            mListeners.get(i).onPanBegin(mScroller.getCurrX(), mScroller.getCurrY(), ZoomPanListener.ORIGINATION_FLING);
     
     }
     
     private void broadcastPinchBegin() {
     
-        for (ZoomPanListener listener : mListeners)
-            listener.onZoomBegin(mScale, ZoomPanListener.ORIGINATION_PINCH);
+        for (int i = 0; i < mListeners.size(); ++i)
+            mListeners.get(i).onZoomBegin(mScale, ZoomPanListener.ORIGINATION_PINCH);
     
     }
     
     private void broadcastPinchEnd() {
     
-        for (ZoomPanListener listener : mListeners)
-            listener.onZoomEnd(mScale, ZoomPanListener.ORIGINATION_PINCH);
+        for (int i = 0; i < mListeners.size(); ++i)
+            mListeners.get(i).onZoomEnd(mScale, ZoomPanListener.ORIGINATION_PINCH);
     
     }
     
     private void broadcastPinchUpdate() {
     
-        for (ZoomPanListener listener : mListeners)
-            listener.onZoomUpdate(mScale, ZoomPanListener.ORIGINATION_PINCH);
+        for (int i = 0; i < mListeners.size(); ++i)
+            mListeners.get(i).onZoomUpdate(mScale, ZoomPanListener.ORIGINATION_PINCH);
     
     }
     
     private void broadcastProgrammaticPanBegin() {
     
-        for (ZoomPanListener listener : mListeners)
-            listener.onPanBegin(getScrollX(), getScrollY(), ZoomPanListener.ORIGINATION_PROGRAMMATIC);
+        for (int i = 0; i < mListeners.size(); ++i)
+            mListeners.get(i).onPanBegin(getScrollX(), getScrollY(), ZoomPanListener.ORIGINATION_PROGRAMMATIC);
     
     }
     
     private void broadcastProgrammaticPanEnd() {
     
-        for (ZoomPanListener listener : mListeners)
-            listener.onPanEnd(getScrollX(), getScrollY(), ZoomPanListener.ORIGINATION_PROGRAMMATIC);
+        for (int i = 0; i < mListeners.size(); ++i)
+            mListeners.get(i).onPanEnd(getScrollX(), getScrollY(), ZoomPanListener.ORIGINATION_PROGRAMMATIC);
     
     }
     
     private void broadcastProgrammaticPanUpdate() {
     
-        for (ZoomPanListener listener : mListeners)
-            listener.onPanUpdate(getScrollX(), getScrollY(), ZoomPanListener.ORIGINATION_PROGRAMMATIC);
+        for (int i = 0; i < mListeners.size(); ++i)
+            mListeners.get(i).onPanUpdate(getScrollX(), getScrollY(), ZoomPanListener.ORIGINATION_PROGRAMMATIC);
     
     }
     
     private void broadcastProgrammaticZoomBegin() {
     
-        for (ZoomPanListener listener : mListeners)
-            listener.onZoomBegin(mScale, ZoomPanListener.ORIGINATION_PROGRAMMATIC);
+        for (int i = 0; i < mListeners.size(); ++i)
+            mListeners.get(i).onZoomBegin(mScale, ZoomPanListener.ORIGINATION_PROGRAMMATIC);
     
     }
     
     private void broadcastProgrammaticZoomEnd() {
     
-        for (ZoomPanListener listener : mListeners)
-            listener.onZoomBegin(mScale, ZoomPanListener.ORIGINATION_PROGRAMMATIC);
+        for (int i = 0; i < mListeners.size(); ++i)
+            mListeners.get(i).onZoomBegin(mScale, ZoomPanListener.ORIGINATION_PROGRAMMATIC);
     
     }
     
     private void broadcastProgrammaticZoomUpdate() {
     
-        for (ZoomPanListener listener : mListeners)
-            listener.onZoomBegin(mScale, ZoomPanListener.ORIGINATION_PROGRAMMATIC);
+        for (int i = 0; i < mListeners.size(); ++i)
+            mListeners.get(i).onZoomBegin(mScale, ZoomPanListener.ORIGINATION_PROGRAMMATIC);
     
     }
     
@@ -388,6 +389,16 @@ public class ZoomPanLayout extends ViewGroup implements GestureDetector.OnDouble
         return mScale;
     }
     
+    /**
+     * Returns the rate the scale changed at during the most recent pinch update, in scale units per
+     * millisecond, or 0 if no pinch is in progress.
+     *
+     * @return The rate the scale is changing at during a pinch.
+     */
+    public float getScaleVelocity() {
+        return mScaleVelocity;
+    }
+    
     /**
      * Returns the scaled height of the underlying composite image.
      *
@@ -574,8 +585,15 @@ public class ZoomPanLayout extends ViewGroup implements GestureDetector.OnDouble
     public boolean onScale(ScaleGestureDetector detector) {
     
         float currentScale = (mScale * detector.getScaleFactor());
+        float previousScale = mScale;
+        
         setScaleFromPosition((int) detector.getFocusX(), (int)detector.getFocusY(), currentScale);
         
+        long timeDelta = detector.getTimeDelta();
+        
+        if (timeDelta > 0)
+            mScaleVelocity = ((mScale - previousScale) / timeDelta);
+        
         broadcastPinchUpdate();
         return true;
     
@@ -585,6 +603,8 @@ public class ZoomPanLayout extends ViewGroup implements GestureDetector.OnDouble
     public boolean onScaleBegin(ScaleGestureDetector detector) {
     
         mIsScaling = true;
+        mScaleVelocity = 0;
+        
         broadcastPinchBegin();
         
         return true;
@@ -598,6 +618,8 @@ public class ZoomPanLayout extends ViewGroup implements GestureDetector.OnDouble
     public void onScaleEnd(ScaleGestureDetector detector) {
     
         mIsScaling = false;
+        mScaleVelocity = 0;
+        
         broadcastPinchEnd();
     
     }
@@ -0,0 +1,144 @@
+package robertapengelly.support.tileview.tile;
+
+import  java.lang.management.ManagementFactory;
+
+import  org.junit.Assume;
+import  org.junit.Before;
+import  org.junit.Test;
+
+import  robertapengelly.support.tileview.cache.TileMemoryCache;
+import  robertapengelly.support.tileview.detail.DetailLevel;
+import  robertapengelly.support.tileview.detail.DetailLevelManager;
+
+import  static org.junit.Assert.assertNull;
+import  static org.junit.Assert.assertTrue;
+
+/**
+ * Guards the per-tile bookkeeping of the scroll path against allocations: the sets and the pool tiles move
+ * through as they enter and leave the viewport, and the memory cache lookups made for each entering tile.
+ * Once the sets and the pool have grown to fit, these should allocate nothing; the budget below only leaves
+ * room for the odd lazily created object, so an allocation added for every tile fails the test.
+ *
+ * Working out which tiles enter and leave the viewport needs a real android.graphics.Rect, which the JVM
+ * tests don't have, so the viewport computation itself isn't covered here.
+ */
+public class TileAllocationTest {
+
+    private static final int ROUND_COUNT = 2000;
+    private static final int TILE_SIZE = 256;
+    private static final int VIEWPORT_HEIGHT = 1920;
+    private static final int VIEWPORT_WIDTH = 1080;
+    
+    // the columns and rows of tiles a viewport covers, with a tile either side that is partly visible
+    private static final int COLUMN_COUNT = ((VIEWPORT_WIDTH / TILE_SIZE) + 2);
+    private static final int ROW_COUNT = ((VIEWPORT_HEIGHT / TILE_SIZE) + 2);
+    
+    // the average number of bytes a round may allocate, well below what a single object per round costs
+    private static final long MAX_BYTES_PER_ROUND = 4;
+    
+    private DetailLevel mDetailLevel;
+    
+    @Before
+    public void setUp() {
+    
+        DetailLevelManager detailLevelManager = new DetailLevelManager();
+        detailLevelManager.setSize(16384, 16384);
+        detailLevelManager.addDetailLevel(1f, "tiles", TILE_SIZE, TILE_SIZE);
+        
+        mDetailLevel = detailLevelManager.getCurrentDetailLevel();
+    
+    }
+    
+    private static long getAllocatedBytes() {
+    
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        
+        // the allocation counter is specific to HotSpot, the test is skipped elsewhere
+        Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        
+        com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        Assume.assumeTrue(allocationMXBean.isThreadAllocatedMemorySupported());
+        
+        allocationMXBean.setThreadAllocatedMemoryEnabled(true);
+        return allocationMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    
+    }
+    
+    @Test
+    public void memoryCacheLookupsDoNotAllocate() {
+    
+        TileMemoryCache tileMemoryCache = new TileMemoryCache();
+        Tile[] tiles = new Tile[COLUMN_COUNT * ROW_COUNT];
+        
+        for (int row = 0; row < ROW_COUNT; ++row)
+            for (int column = 0; column < COLUMN_COUNT; ++column)
+                tiles[(row * COLUMN_COUNT) + column] = new Tile(column, row, TILE_SIZE, TILE_SIZE, "tiles",
+                    mDetailLevel);
+        
+        long allocatedBytes = 0;
+        
+        // as many rounds again warm up first, so the lookups are compiled by the time they are measured
+        for (int round = 0; round < (ROUND_COUNT * 2); ++round) {
+        
+            if (round == ROUND_COUNT)
+                allocatedBytes = getAllocatedBytes();
+            
+            // every tile entering the viewport is looked up, there are no bitmaps for the JVM tests to cache
+            for (Tile tile : tiles)
+                assertNull(tileMemoryCache.take(tile));
+        
+        }
+        
+        allocatedBytes = (getAllocatedBytes() - allocatedBytes);
+        
+        assertTrue(("Memory cache lookups allocated " + allocatedBytes + " bytes"),
+            (allocatedBytes <= (MAX_BYTES_PER_ROUND * ROUND_COUNT)));
+    
+    }
+    
+    @Test
+    public void tileSetOperationsDoNotAllocate() {
+    
+        TilePool tilePool = mDetailLevel.getTilePool();
+        TileSet tileSet = new TileSet();
+        
+        long allocatedBytes = 0;
+        
+        // the warm-up rounds grow the set, fill the pool and get the operations compiled
+        for (int round = 0; round < (ROUND_COUNT * 2); ++round) {
+        
+            if (round == ROUND_COUNT)
+                allocatedBytes = getAllocatedBytes();
+            
+            for (int row = 0; row < ROW_COUNT; ++row)
+                for (int column = 0; column < COLUMN_COUNT; ++column)
+                    tileSet.add(tilePool.obtain(column, row, TILE_SIZE, TILE_SIZE, "tiles", mDetailLevel));
+            
+            for (int row = 0; row < ROW_COUNT; ++row) {
+            
+                for (int column = 0; column < COLUMN_COUNT; ++column) {
+                
+                    Tile tile = tileSet.getByKey(Tile.getKey(mDetailLevel.getKeyIndex(), column, row));
+                    
+                    if ((tile != null) && tileSet.contains(tile) && ((column & 1) == 0) && tileSet.remove(tile))
+                        tilePool.release(tile);
+                
+                }
+            
+            }
+            
+            for (int i = 0; i < tileSet.size(); ++i)
+                tilePool.release(tileSet.get(i));
+            
+            tileSet.clear();
+        
+        }
+        
+        allocatedBytes = (getAllocatedBytes() - allocatedBytes);
+        
+        assertTrue(("TileSet operations allocated " + allocatedBytes + " bytes"),
+            (allocatedBytes <= (MAX_BYTES_PER_ROUND * ROUND_COUNT)));
+    
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,313 @@
+package robertapengelly.support.tileview.tile;
+
+import  android.content.Context;
+import  android.content.ContextWrapper;
+
+import  java.util.Collections;
+import  java.util.Set;
+import  java.util.concurrent.ConcurrentHashMap;
+import  java.util.concurrent.CountDownLatch;
+import  java.util.concurrent.Executor;
+import  java.util.concurrent.atomic.AtomicBoolean;
+import  java.util.concurrent.atomic.AtomicInteger;
+import  java.util.concurrent.atomic.AtomicReference;
+
+import  org.junit.Before;
+import  org.junit.Test;
+
+import  robertapengelly.support.tileview.detail.DetailLevel;
+import  robertapengelly.support.tileview.detail.DetailLevelManager;
+
+import  static org.junit.Assert.assertEquals;
+import  static org.junit.Assert.assertFalse;
+import  static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers the tile state machine and the render batches of TileRenderPoolExecutor from several threads.  The
+ * scheduler never runs anything itself; the tests take runnables from the queue on threads of their own, the
+ * way the scheduler's workers do, so no decode (and no Android bitmap) is involved.
+ */
+public class TileStressTest {
+
+    private static final int ROUND_COUNT = 500;
+    private static final int THREAD_COUNT = 8;
+    private static final int TILE_COUNT = 1000;
+    private static final int TILES_PER_ROUND = 16;
+    private static final long TIMEOUT = 30000;
+    
+    // the scheduler hands its work to this, which drops it, so runnables stay queued until a test polls them
+    private static final Executor IDLE_EXECUTOR = new Executor() {
+    
+        @Override
+        public void execute(Runnable runnable) {}
+    
+    };
+    
+    private DetailLevel mDetailLevel;
+    private TileRenderPoolExecutor mTileRenderPoolExecutor;
+    
+    @Before
+    public void setUp() {
+    
+        mDetailLevel = new DetailLevel(new DetailLevelManager(), 1f, "tiles", 256, 256);
+        mTileRenderPoolExecutor = new TileRenderPoolExecutor(new TileRenderScheduler(IDLE_EXECUTOR));
+    
+    }
+    
+    @Test
+    public void executeFromSeveralThreadsQueuesEachTileOnce() throws Throwable {
+    
+        final Tile[] tiles = newTiles(0, TILE_COUNT);
+        
+        runConcurrently(new Runnable() {
+        
+            @Override
+            public void run() {
+            
+                for (Tile tile : tiles)
+                    tile.execute(mTileRenderPoolExecutor);
+            
+            }
+        
+        });
+        
+        assertEquals(TILE_COUNT, mTileRenderPoolExecutor.getQueue().size());
+        
+        for (Tile tile : tiles)
+            assertEquals(Tile.STATE_PENDING_DECODE, tile.getState());
+    
+    }
+    
+    @Test
+    public void failedDecodesFromSeveralThreadsReturnTilesToUnassigned() throws Throwable {
+    
+        final Tile[] tiles = newTiles(0, TILE_COUNT);
+        final TileRenderRunnable[] runnables = new TileRenderRunnable[TILE_COUNT];
+        
+        for (Tile tile : tiles)
+            tile.execute(mTileRenderPoolExecutor);
+        
+        for (int i = 0; i < TILE_COUNT; ++i)
+            runnables[i] = mTileRenderPoolExecutor.poll();
+        
+        runConcurrently(new Runnable() {
+        
+            @Override
+            public void run() {
+            
+                for (TileRenderRunnable runnable : runnables)
+                    assertFalse(runnable.getTile().setBitmap(runnable, null));
+            
+            }
+        
+        });
+        
+        for (Tile tile : tiles) {
+        
+            assertEquals(Tile.STATE_UNASSIGNED, tile.getState());
+            
+            // and the tile can be executed again
+            tile.execute(mTileRenderPoolExecutor);
+            assertEquals(Tile.STATE_PENDING_DECODE, tile.getState());
+        
+        }
+    
+    }
+    
+    @Test
+    public void queueAndCancelCompleteEachBatchOnce() throws Throwable {
+    
+        final AtomicBoolean queueing = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        
+        final CountingTileCanvasViewGroup tileCanvasViewGroup = new CountingTileCanvasViewGroup(
+            new ContextWrapper(null));
+        
+        Runnable worker = new Runnable() {
+        
+            @Override
+            public void run() {
+            
+                while (queueing.get() || !mTileRenderPoolExecutor.getQueue().isEmpty()) {
+                
+                    TileRenderRunnable runnable = mTileRenderPoolExecutor.poll();
+                    
+                    if (runnable == null) {
+                    
+                        Thread.yield();
+                        continue;
+                    
+                    }
+                    
+                    mTileRenderPoolExecutor.afterExecute(runnable, null);
+                
+                }
+            
+            }
+        
+        };
+        
+        Thread[] workers = startThreads(worker, null, failure);
+        
+        try {
+        
+            // this thread plays the UI thread, which is the only one allowed to queue and cancel
+            for (int round = 0; round < ROUND_COUNT; ++round) {
+            
+                TileSet tileSet = newTileSet(round);
+                mTileRenderPoolExecutor.queue(tileCanvasViewGroup, tileSet, tileSet);
+                
+                if ((round % 3) == 0)
+                    mTileRenderPoolExecutor.cancel();
+            
+            }
+            
+            TileSet tileSet = newTileSet(ROUND_COUNT);
+            mTileRenderPoolExecutor.queue(tileCanvasViewGroup, tileSet, tileSet);
+        
+        } finally {
+            queueing.set(false);
+        }
+        
+        joinThreads(workers, failure);
+        
+        assertEquals(0, mTileRenderPoolExecutor.getActiveCount());
+        assertEquals(0, mTileRenderPoolExecutor.getQueue().size());
+        assertEquals(0, tileCanvasViewGroup.mDuplicateCompletionCount.get());
+        
+        // the last batch wasn't cancelled, so it has to have completed
+        assertTrue(tileCanvasViewGroup.mCompletedGenerations.contains(mTileRenderPoolExecutor.getGeneration()));
+    
+    }
+    
+    @Test
+    public void resetFromSeveralThreadsCancelsEachTileOnce() throws Throwable {
+    
+        final Tile[] tiles = newTiles(0, TILE_COUNT);
+        
+        for (Tile tile : tiles)
+            tile.execute(mTileRenderPoolExecutor);
+        
+        runConcurrently(new Runnable() {
+        
+            @Override
+            public void run() {
+            
+                for (Tile tile : tiles)
+                    tile.reset();
+            
+            }
+        
+        });
+        
+        assertEquals(0, mTileRenderPoolExecutor.getQueue().size());
+        
+        for (Tile tile : tiles)
+            assertEquals(Tile.STATE_UNASSIGNED, tile.getState());
+    
+    }
+    
+    private static void joinThreads(Thread[] threads, AtomicReference<Throwable> failure) throws Throwable {
+    
+        for (Thread thread : threads) {
+        
+            thread.join(TIMEOUT);
+            assertFalse("A thread is stuck", thread.isAlive());
+        
+        }
+        
+        if (failure.get() != null)
+            throw failure.get();
+    
+    }
+    
+    private TileSet newTileSet(int round) {
+    
+        TileSet tileSet = new TileSet();
+        
+        for (Tile tile : newTiles((round * TILES_PER_ROUND), TILES_PER_ROUND))
+            tileSet.add(tile);
+        
+        return tileSet;
+    
+    }
+    
+    private Tile[] newTiles(int firstColumn, int count) {
+    
+        Tile[] tiles = new Tile[count];
+        
+        for (int i = 0; i < count; ++i)
+            tiles[i] = new Tile((firstColumn + i), 0, 256, 256, "tiles", mDetailLevel);
+        
+        return tiles;
+    
+    }
+    
+    // runs the task on several threads, released together so they contend for the same tiles
+    private static void runConcurrently(Runnable task) throws Throwable {
+    
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        
+        Thread[] threads = startThreads(task, start, failure);
+        start.countDown();
+        
+        joinThreads(threads, failure);
+    
+    }
+    
+    private static Thread[] startThreads(final Runnable task, final CountDownLatch start,
+        final AtomicReference<Throwable> failure) {
+        
+        Thread[] threads = new Thread[THREAD_COUNT];
+        
+        for (int i = 0; i < THREAD_COUNT; ++i) {
+        
+            threads[i] = new Thread(new Runnable() {
+            
+                @Override
+                public void run() {
+                
+                    try {
+                    
+                        if (start != null)
+                            start.await();
+                        
+                        task.run();
+                    
+                    } catch (Throwable throwable) {
+                        failure.compareAndSet(null, throwable);
+                    }
+                
+                }
+            
+            });
+            
+            threads[i].start();
+        
+        }
+        
+        return threads;
+    
+    }
+    
+    private static class CountingTileCanvasViewGroup extends TileCanvasViewGroup {
+    
+        final AtomicInteger mDuplicateCompletionCount = new AtomicInteger();
+        final Set<Long> mCompletedGenerations = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        
+        CountingTileCanvasViewGroup(Context context) {
+            super(context);
+        }
+        
+        @Override
+        void onRenderTaskPostExecute(long generation) {
+        
+            if (!mCompletedGenerations.add(generation))
+                mDuplicateCompletionCount.incrementAndGet();
+        
+        }
+    
+    }
+
+}
\ No newline at end of file